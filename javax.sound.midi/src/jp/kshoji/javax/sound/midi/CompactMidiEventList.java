@@ -0,0 +1,357 @@
+package jp.kshoji.javax.sound.midi;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * {@link java.util.List} of {@link MidiEvent}s, stores the events into the primitive arrays.<br />
+ * The ticks are stored in the long array, and the short messages are packed into the int array.
+ * The other messages(such as meta, sysex) are stored into the shared byte array.
+ * The {@link MidiEvent} instance is created on each {@link #get(int)} call, so the modification to the returned instance is not stored.
+ *
+ * @author K.Shoji
+ */
+final class CompactMidiEventList extends AbstractList<MidiEvent> implements RandomAccess {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int INITIAL_ARENA_CAPACITY = 256;
+
+    private long[] ticks = new long[INITIAL_CAPACITY];
+    // >= 0: the short message, packed as (length << 24) | (status << 16) | (data1 << 8) | data2
+    // < 0: -(the offset of the message in the arena) - 1
+    private int[] messages = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // the entry is the 4 bytes length, and the message data
+    private byte[] arena = new byte[INITIAL_ARENA_CAPACITY];
+    private int arenaLength = 0;
+    private int arenaGarbage = 0;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @NonNull
+    @Override
+    public MidiEvent get(final int index) {
+        checkIndex(index, size);
+        return new MidiEvent(decodeMessage(messages[index]), ticks[index]);
+    }
+
+    @NonNull
+    @Override
+    public MidiEvent set(final int index, @NonNull final MidiEvent event) {
+        checkIndex(index, size);
+        final MidiEvent previous = get(index);
+        releaseMessage(messages[index]);
+        ticks[index] = event.getTick();
+        messages[index] = encodeMessage(event.getMessage());
+        compactArenaIfNeeded();
+        return previous;
+    }
+
+    @Override
+    public void add(final int index, @NonNull final MidiEvent event) {
+        checkIndex(index, size + 1);
+        if (size == ticks.length) {
+            final int newCapacity = size + (size >> 1) + 1;
+            ticks = Arrays.copyOf(ticks, newCapacity);
+            messages = Arrays.copyOf(messages, newCapacity);
+        }
+        if (index < size) {
+            System.arraycopy(ticks, index, ticks, index + 1, size - index);
+            System.arraycopy(messages, index, messages, index + 1, size - index);
+        }
+        ticks[index] = event.getTick();
+        messages[index] = encodeMessage(event.getMessage());
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public boolean addAll(final int index, @NonNull final Collection<? extends MidiEvent> collection) {
+        checkIndex(index, size + 1);
+        final int count = collection.size();
+        if (count == 0) {
+            return false;
+        }
+
+        if (size + count > ticks.length) {
+            final int newCapacity = Math.max(size + count, size + (size >> 1) + 1);
+            ticks = Arrays.copyOf(ticks, newCapacity);
+            messages = Arrays.copyOf(messages, newCapacity);
+        }
+        // move the following events at once
+        if (index < size) {
+            System.arraycopy(ticks, index, ticks, index + count, size - index);
+            System.arraycopy(messages, index, messages, index + count, size - index);
+        }
+        int position = index;
+        for (final MidiEvent event : collection) {
+            ticks[position] = event.getTick();
+            messages[position] = encodeMessage(event.getMessage());
+            position++;
+        }
+        size += count;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    protected void removeRange(final int fromIndex, final int toIndex) {
+        if (fromIndex >= toIndex) {
+            return;
+        }
+
+        for (int i = fromIndex; i < toIndex; i++) {
+            releaseMessage(messages[i]);
+        }
+        // move the following events at once
+        System.arraycopy(ticks, toIndex, ticks, fromIndex, size - toIndex);
+        System.arraycopy(messages, toIndex, messages, fromIndex, size - toIndex);
+        size -= toIndex - fromIndex;
+        modCount++;
+        compactArenaIfNeeded();
+    }
+
+    @NonNull
+    @Override
+    public MidiEvent remove(final int index) {
+        checkIndex(index, size);
+        final MidiEvent previous = get(index);
+        releaseMessage(messages[index]);
+        if (index < size - 1) {
+            System.arraycopy(ticks, index + 1, ticks, index, size - index - 1);
+            System.arraycopy(messages, index + 1, messages, index, size - index - 1);
+        }
+        size--;
+        modCount++;
+        compactArenaIfNeeded();
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        arenaLength = 0;
+        arenaGarbage = 0;
+        modCount++;
+    }
+
+    /**
+     * Find the event with the same tick and the same message data, because the stored events have no identity
+     *
+     * @param object the event
+     * @return the index, -1 if not found
+     */
+    @Override
+    public int indexOf(@Nullable final Object object) {
+        if (!(object instanceof MidiEvent)) {
+            return -1;
+        }
+
+        final MidiEvent event = (MidiEvent) object;
+        for (int i = 0; i < size; i++) {
+            if (matches(i, event)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(@Nullable final Object object) {
+        return indexOf(object) >= 0;
+    }
+
+    @Override
+    public boolean remove(@Nullable final Object object) {
+        final int index = indexOf(object);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    @Override
+    public int lastIndexOf(@Nullable final Object object) {
+        if (!(object instanceof MidiEvent)) {
+            return -1;
+        }
+
+        final MidiEvent event = (MidiEvent) object;
+        for (int i = size - 1; i >= 0; i--) {
+            if (matches(i, event)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check if the stored event has the same tick and the same message data, without decoding the stored event
+     *
+     * @param index the index of the stored event
+     * @param event the event
+     * @return true if matches
+     */
+    private boolean matches(final int index, @NonNull final MidiEvent event) {
+        if (ticks[index] != event.getTick()) {
+            return false;
+        }
+
+        final MidiMessage message = event.getMessage();
+        final int length = message.getLength();
+        final int value = messages[index];
+        if (value >= 0) {
+            if (length != value >>> 24) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (message.getByte(i) != ((value >> (16 - i * 8)) & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        final int offset = -value - 1;
+        if (length != getArenaEntryLength(offset)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (message.getByte(i) != (arena[offset + 4 + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check the index
+     *
+     * @param index the index
+     * @param limit the upper limit, exclusive
+     * @throws IndexOutOfBoundsException
+     */
+    private static void checkIndex(final int index, final int limit) throws IndexOutOfBoundsException {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + limit);
+        }
+    }
+
+    /**
+     * Encode the message into the int value
+     *
+     * @param message the message
+     * @return the encoded value
+     */
+    private int encodeMessage(@NonNull final MidiMessage message) {
+        final int length = message.getLength();
+        if (message instanceof ShortMessage && length > 0 && length <= 3) {
+            final ShortMessage shortMessage = (ShortMessage) message;
+            return (length << 24) | (shortMessage.getStatus() << 16) | (shortMessage.getData1() << 8) | shortMessage.getData2();
+        }
+
+        if (arenaLength + 4 + length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arenaLength + 4 + length, arena.length * 2));
+        }
+        final int offset = arenaLength;
+        arena[offset] = (byte) (length >> 24);
+        arena[offset + 1] = (byte) (length >> 16);
+        arena[offset + 2] = (byte) (length >> 8);
+        arena[offset + 3] = (byte) length;
+        message.getMessage(0, arena, offset + 4, length);
+        arenaLength += 4 + length;
+        return -offset - 1;
+    }
+
+    /**
+     * Get the length of the arena entry
+     *
+     * @param offset the offset of the entry
+     * @return the length of the message data
+     */
+    private int getArenaEntryLength(final int offset) {
+        return ((arena[offset] & 0xff) << 24) | ((arena[offset + 1] & 0xff) << 16) | ((arena[offset + 2] & 0xff) << 8) | (arena[offset + 3] & 0xff);
+    }
+
+    /**
+     * Decode the message from the int value
+     *
+     * @param value the encoded value
+     * @return the message
+     */
+    @NonNull
+    private MidiMessage decodeMessage(final int value) {
+        if (value >= 0) {
+            final int length = value >>> 24;
+            final byte[] data = new byte[length];
+            data[0] = (byte) (value >> 16);
+            if (length > 1) {
+                data[1] = (byte) (value >> 8);
+                if (length > 2) {
+                    data[2] = (byte) value;
+                }
+            }
+            return new ShortMessage(data);
+        }
+
+        final int offset = -value - 1;
+        final int length = getArenaEntryLength(offset);
+        final byte[] data = Arrays.copyOfRange(arena, offset + 4, offset + 4 + length);
+        if (length > 0) {
+            switch (data[0] & 0xff) {
+                case MetaMessage.META:
+                    return new MetaMessage(data);
+                case ShortMessage.START_OF_EXCLUSIVE:
+                case ShortMessage.END_OF_EXCLUSIVE:
+                    return new SysexMessage(data);
+                default:
+                    break;
+            }
+        }
+        return new ShortMessage(data);
+    }
+
+    /**
+     * Mark the arena entry of the message as unused
+     *
+     * @param value the encoded value
+     */
+    private void releaseMessage(final int value) {
+        if (value < 0) {
+            arenaGarbage += 4 + getArenaEntryLength(-value - 1);
+        }
+    }
+
+    /**
+     * Remove the unused entries from the arena, if more than half of the arena is unused
+     */
+    private void compactArenaIfNeeded() {
+        if (arenaGarbage <= INITIAL_ARENA_CAPACITY || arenaGarbage <= arenaLength / 2) {
+            return;
+        }
+
+        final byte[] newArena = new byte[Math.max(INITIAL_ARENA_CAPACITY, arenaLength - arenaGarbage)];
+        int newArenaLength = 0;
+        for (int i = 0; i < size; i++) {
+            if (messages[i] < 0) {
+                final int offset = -messages[i] - 1;
+                final int entryLength = 4 + getArenaEntryLength(offset);
+                System.arraycopy(arena, offset, newArena, newArenaLength, entryLength);
+                messages[i] = -newArenaLength - 1;
+                newArenaLength += entryLength;
+            }
+        }
+        arena = newArena;
+        arenaLength = newArenaLength;
+        arenaGarbage = 0;
+    }
+}
@@ -132,6 +132,35 @@ public class MetaMessage extends MidiMessage {
 		return returnedArray;
 	}
 
+	/**
+	 * Get the length of the data of {@link MetaMessage}
+	 *
+	 * @return the data length without header(`META`, type, data length)
+	 */
+	public int getDataLength() {
+		if (data == null) {
+			return 0;
+		}
+
+		return dataLength;
+	}
+
+	/**
+	 * Copy the data of {@link MetaMessage} into the specified array, without allocating the new array
+	 *
+	 * @param destination the destination array, must have {@link #getDataLength()} bytes from the offset
+	 * @param offset the offset of the destination array
+	 * @return the length of the copied data
+	 */
+	public int getData(@NonNull final byte[] destination, final int offset) {
+		if (data == null) {
+			return 0;
+		}
+
+		System.arraycopy(data, data.length - dataLength, destination, offset, dataLength);
+		return dataLength;
+	}
+
     @SuppressWarnings("CloneDoesntCallSuperClone")
 	@NonNull
 	@Override
@@ -169,12 +198,12 @@ public class MetaMessage extends MidiMessage {
      */
 	private static void writeMidiValues(@NonNull final byte[] data, final int offset, final long value) {
 		int shift = 63;
-		while ((shift > 0) && ((value & (0x7f << shift)) == 0)) {
+		while ((shift > 0) && ((value & (0x7fL << shift)) == 0)) {
 			shift -= 7;
 		}
 		int currentOffset = offset;
 		while (shift > 0) {
-			data[currentOffset++] = (byte) (((value & (0x7f << shift)) >> shift) | 0x80);
+			data[currentOffset++] = (byte) (((value & (0x7fL << shift)) >> shift) | 0x80);
 			shift -= 7;
 		}
 		data[currentOffset] = (byte) (value & 0x7f);
@@ -3,6 +3,8 @@ package jp.kshoji.javax.sound.midi;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.nio.ByteBuffer;
+
 /**
  * Abstract class for MIDI Message
  *
@@ -65,6 +67,52 @@ public abstract class MidiMessage implements Cloneable {
 		return resultArray;
 	}
 
+    /**
+     * Get the byte of the message source data, without copying the data
+     *
+     * @param index the index of the byte
+     * @return the byte value 0-255
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    public int getByte(final int index) throws ArrayIndexOutOfBoundsException {
+        if (data == null) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+
+        return data[index] & 0xff;
+    }
+
+    /**
+     * Write the message source data into the {@link ByteBuffer}, without allocating the new array
+     *
+     * @param buffer the destination buffer, must have {@link #getLength()} bytes remaining
+     * @return the length of the written data
+     */
+    public int writeTo(@NonNull final ByteBuffer buffer) {
+        if (data == null) {
+            return 0;
+        }
+
+        buffer.put(data);
+        return data.length;
+    }
+
+    /**
+     * Copy the part of the message source data into the specified array, without allocating the new array
+     *
+     * @param sourceOffset the offset of the message source data
+     * @param destination the destination array
+     * @param destinationOffset the offset of the destination array
+     * @param length the length to copy
+     */
+    public void getMessage(final int sourceOffset, @NonNull final byte[] destination, final int destinationOffset, final int length) {
+        if (data == null) {
+            return;
+        }
+
+        System.arraycopy(data, sourceOffset, destination, destinationOffset, length);
+    }
+
     /**
      * Get the status of the {@link MidiMessage}
      *
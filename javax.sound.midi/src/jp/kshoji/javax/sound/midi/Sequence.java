@@ -5,6 +5,8 @@ import android.support.annotation.Nullable;
 
 import java.util.Vector;
 
+import jp.kshoji.javax.sound.midi.impl.TempoMap;
+
 /**
  * Represents MIDI Sequence
  *
@@ -23,6 +25,16 @@ public class Sequence {
 
 	private static final float[] SUPPORTING_DIVISION_TYPES = {PPQ, SMPTE_24, SMPTE_25, SMPTE_30, SMPTE_30DROP};
 
+	// the cached values are valid while the tracks and their modification counts are same as these
+	private final Object cacheLock = new Object();
+	@Nullable
+	private Track[] cachedTracks = null;
+	@Nullable
+	private int[] cachedModificationCounts = null;
+	private long cachedTickLength = 0;
+	@Nullable
+	private TempoMap cachedTempoMap = null;
+
 	/**
 	 * Check if the divisionType supported
 	 * @param divisionType the divisionType
@@ -115,12 +127,22 @@ public class Sequence {
 	}
 
 	/**
-	 * Get the {@link Sequence} length in microseconds
+	 * Get the {@link Sequence} length in microseconds, calculated with the tempo changes in the {@link Sequence}
 	 * 
 	 * @return the {@link Sequence} length in microseconds
 	 */
 	public long getMicrosecondLength() {
-		return (long) (1000000.0f * getTickLength() / ((this.divisionType == 0.0f ? 2 : this.divisionType) * this.resolution * 1.0f));
+		final TempoMap tempoMap;
+		final long tickLength;
+		synchronized (cacheLock) {
+			validateCache();
+			if (cachedTempoMap == null) {
+				cachedTempoMap = TempoMap.fromSequence(this);
+			}
+			tempoMap = cachedTempoMap;
+			tickLength = cachedTickLength;
+		}
+		return tempoMap.tickToMicrosecond(tickLength);
 	}
 
 	/**
@@ -138,14 +160,46 @@ public class Sequence {
 	 * @return tick length
 	 */
 	public long getTickLength() {
+		synchronized (cacheLock) {
+			validateCache();
+			return cachedTickLength;
+		}
+	}
+
+	/**
+	 * Recalculate the tick length, and clear the other cached values, if the tracks have been modified
+	 */
+	private void validateCache() {
+		final Track[] cachedTracks = this.cachedTracks;
+		final int[] cachedModificationCounts = this.cachedModificationCounts;
+		boolean valid = cachedTracks != null && cachedModificationCounts != null && cachedTracks.length == tracks.size();
+		for (int i = 0; valid && i < cachedTracks.length; i++) {
+			final Track track = tracks.get(i);
+			valid = track == cachedTracks[i] && Track.TrackUtils.getModificationCount(track) == cachedModificationCounts[i];
+		}
+		if (valid) {
+			return;
+		}
+
+		cachedTempoMap = null;
+
 		/*
-		 * this method return the biggest value of tick of all tracks contain in the Sequence
+		 * the tick length is the biggest value of tick of all tracks contain in the Sequence
 		 */
+		final Track[] currentTracks = getTracks();
 		long maxTick = 0;
-		for (int i = 0; i < tracks.size(); i++) {
-			maxTick = Math.max(maxTick, tracks.get(i).ticks());
+		for (final Track track : currentTracks) {
+			// this may add End of Track to the track, so the modification counts are read after this
+			maxTick = Math.max(maxTick, track.ticks());
+		}
+		cachedTickLength = maxTick;
+
+		final int[] modificationCounts = new int[currentTracks.length];
+		for (int i = 0; i < currentTracks.length; i++) {
+			modificationCounts[i] = Track.TrackUtils.getModificationCount(currentTracks[i]);
 		}
-		return maxTick;
+		this.cachedTracks = currentTracks;
+		this.cachedModificationCounts = modificationCounts;
 	}
 
 	/**
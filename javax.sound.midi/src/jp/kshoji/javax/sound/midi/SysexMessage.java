@@ -103,8 +103,25 @@ public class SysexMessage extends MidiMessage {
 		return result;
 	}
 
+	/**
+	 * Copy the SysEx data into the specified array, without allocating the new array
+	 *
+	 * @param destination the destination array, must have ({@link #getLength()} - 1) bytes from the offset
+	 * @param offset the offset of the destination array
+	 * @return the length of the copied data
+	 */
+	public int getData(@NonNull final byte[] destination, final int offset) {
+		if (data.length == 0) {
+			return 0;
+		}
+
+		System.arraycopy(data, 1, destination, offset, data.length - 1);
+		return data.length - 1;
+	}
+
 	@Override
 	public Object clone() {
-        return new SysexMessage(getData());
+		// the raw data, including the status byte
+		return new SysexMessage(getMessage());
 	}
 }
@@ -1,10 +1,10 @@
 package jp.kshoji.javax.sound.midi;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -20,7 +20,18 @@ public class Track {
     private static final byte[] END_OF_TRACK = { -1, 47, 0 };
     private static final Track[] emptyTracks = {};
 
-    private final List<MidiEvent> events = new ArrayList<MidiEvent>();
+    private final List<MidiEvent> events;
+    @Nullable
+    private volatile TrackUtils.EventLoader eventLoader = null;
+    // the End of Track event at the last of events, null if not added yet
+    @Nullable
+    private MidiEvent endOfTrack = null;
+
+    // incremented on each modification, the cached values are invalidated by this
+    private volatile int modificationCount = 0;
+    @Nullable
+    private int[] cachedEventCounts = null;
+    private int cachedEventCountsModificationCount = 0;
 
 	/**
 	 * {@link Comparator} for MIDI data sorting
@@ -29,38 +40,189 @@ public class Track {
 		@Override
 		public int compare(MidiEvent lhs, MidiEvent rhs) {
 			// sort by tick
-			final int tickDifference = (int) (lhs.getTick() - rhs.getTick());
-			if (tickDifference != 0) {
-				return tickDifference * 256;
+			final int tickComparison = Long.compare(lhs.getTick(), rhs.getTick());
+			if (tickComparison != 0) {
+				return tickComparison;
 			}
 
-            byte[] lhsMessage = lhs.getMessage().getMessage();
-            byte[] rhsMessage = rhs.getMessage().getMessage();
-
-            // apply zero if message is empty
-            if (lhsMessage == null || lhsMessage.length < 1) {
-                lhsMessage = new byte[] {0};
-            }
-            if (rhsMessage == null || rhsMessage.length < 1) {
-                rhsMessage = new byte[] {0};
-            }
-
 			// same timing
 			// sort by the MIDI data priority order, as:
 			// system message > control messages > note off > note on
-			int lhsInt = lhsMessage[0] & 0xf0;
-			int rhsInt = rhsMessage[0] & 0xf0;
-
-			return -(lhsInt - rhsInt);
+			// the status of the empty message is zero
+			return getSortPriority(lhs) - getSortPriority(rhs);
 		}
 	};
 
+	// the sort key: tick(35 bits), priority(4 bits), and the original index(24 bits) for the stable sort
+	private static final int SORT_KEY_INDEX_BITS = 24;
+	private static final int SORT_KEY_PRIORITY_BITS = 4;
+	private static final long SORT_KEY_MAX_TICK = 1L << (63 - SORT_KEY_INDEX_BITS - SORT_KEY_PRIORITY_BITS);
+	// the merge key: tick, priority, and the source index(16 bits) for the stable merge
+	private static final int MERGE_KEY_SOURCE_BITS = 16;
+
+	/**
+	 * Get the priority of the event at the same tick, the smaller is the earlier
+	 *
+	 * @param event the event
+	 * @return the priority 0-15
+	 */
+	private static int getSortPriority(@NonNull final MidiEvent event) {
+		return 15 - ((event.getMessage().getStatus() >> 4) & 0xf);
+	}
+
+	/**
+	 * Sort the events, order by tick and events.<br />
+	 * The events are sorted with the packed (tick, priority, index) keys, without calling {@link #midiEventComparator}.
+	 * The order is same as sorting with {@link #midiEventComparator}.
+	 *
+	 * @param events the events to sort
+	 */
+	static void sortEventList(@NonNull final List<MidiEvent> events) {
+		final int eventCount = events.size();
+		if (eventCount < 2) {
+			return;
+		}
+
+		final MidiEvent[] sourceEvents = events.toArray(new MidiEvent[eventCount]);
+		boolean canPack = eventCount <= (1 << SORT_KEY_INDEX_BITS);
+		final long[] keys = new long[eventCount];
+		for (int i = 0; canPack && i < eventCount; i++) {
+			final long tick = sourceEvents[i].getTick();
+			if (tick < 0 || tick >= SORT_KEY_MAX_TICK) {
+				canPack = false;
+			} else {
+				keys[i] = (((tick << SORT_KEY_PRIORITY_BITS) | getSortPriority(sourceEvents[i])) << SORT_KEY_INDEX_BITS) | i;
+			}
+		}
+
+		if (!canPack) {
+			Collections.sort(events, midiEventComparator);
+			return;
+		}
+
+		Arrays.sort(keys);
+		final int indexMask = (1 << SORT_KEY_INDEX_BITS) - 1;
+		for (int i = 0; i < eventCount; i++) {
+			events.set(i, sourceEvents[(int) (keys[i] & indexMask)]);
+		}
+	}
+
 	/**
 	 * Utilities for {@link Track}
 	 * 
 	 * @author K.Shoji
 	 */
 	public static class TrackUtils {
+		/**
+		 * Loader of the {@link MidiEvent}s, called on the first access to the {@link Track}
+		 *
+		 * @author K.Shoji
+		 */
+		public interface EventLoader {
+			/**
+			 * Load the events into the track
+			 *
+			 * @param track the Track
+			 */
+			void loadEvents(@NonNull Track track);
+		}
+
+		/**
+		 * Set the {@link EventLoader} to the {@link Track}, the events are loaded on the first access
+		 *
+		 * @param track the Track
+		 * @param eventLoader the loader
+		 */
+		public static void setEventLoader(@NonNull final Track track, @NonNull final EventLoader eventLoader) {
+			synchronized (track.events) {
+				track.eventLoader = eventLoader;
+			}
+		}
+
+		/**
+		 * Create an empty {@link Track} with the compact storage, and add it to the {@link Sequence}.<br />
+		 * The events are stored into the primitive arrays instead of the {@link MidiEvent} instances, and uses much less memory.
+		 * The {@link MidiEvent} is created on each {@link Track#get(int)} call, so the modification to the returned instance is not stored to the track.
+		 * The messages are restored as {@link ShortMessage}, {@link MetaMessage}, or {@link SysexMessage}.
+		 *
+		 * @param sequence the Sequence
+		 * @return an empty {@link Track}
+		 */
+		@NonNull
+		public static Track createCompactTrack(@NonNull final Sequence sequence) {
+			final Track track = new Track(true);
+			sequence.tracks.add(track);
+			return track;
+		}
+
+		/**
+		 * Check if the {@link Track} stores the events with the compact storage
+		 *
+		 * @param track the Track
+		 * @return true if the track is created with {@link #createCompactTrack(Sequence)}
+		 */
+		public static boolean isCompactTrack(@NonNull final Track track) {
+			return track.events instanceof CompactMidiEventList;
+		}
+
+		/**
+		 * Get the modification count of the {@link Track}, incremented on each add, remove, and sort.<br />
+		 * The modification of the tick via {@link MidiEvent#setTick(long)} is not counted.
+		 *
+		 * @param track the Track
+		 * @return the modification count
+		 */
+		public static int getModificationCount(@NonNull final Track track) {
+			return track.modificationCount;
+		}
+
+		/**
+		 * Get the number of the events with the specified status, the value is cached until the {@link Track} is modified
+		 *
+		 * @param track the Track
+		 * @param status the command of the channel message(such as {@link ShortMessage#NOTE_ON}, the channel is ignored),
+		 *               or the status of the system message(such as {@link ShortMessage#START_OF_EXCLUSIVE}, {@link MetaMessage#META})
+		 * @return the number of the events
+		 */
+		public static int getEventCount(@NonNull final Track track, final int status) {
+			track.loadEvents();
+			synchronized (track.events) {
+				if (track.cachedEventCounts == null || track.cachedEventCountsModificationCount != track.modificationCount) {
+					final int[] eventCounts = new int[256];
+					for (final MidiEvent event : track.events) {
+						eventCounts[getEventCountIndex(event.getMessage().getStatus())]++;
+					}
+					track.cachedEventCounts = eventCounts;
+					track.cachedEventCountsModificationCount = track.modificationCount;
+				}
+				return track.cachedEventCounts[getEventCountIndex(status & 0xff)];
+			}
+		}
+
+		/**
+		 * Get the index of the event counts
+		 *
+		 * @param status the status
+		 * @return the index
+		 */
+		private static int getEventCountIndex(final int status) {
+			if (status < 0xf0) {
+				// channel message: ignore the channel
+				return status & 0xf0;
+			}
+			return status;
+		}
+
+		/**
+		 * Check if the events of the {@link Track} has been loaded
+		 *
+		 * @param track the Track
+		 * @return true if the events has been loaded
+		 */
+		public static boolean isLoaded(@NonNull final Track track) {
+			return track.eventLoader == null;
+		}
+
 		/**
 		 * Merge the specified {@link Sequencer}'s {@link Track}s into one {@link Track}
 		 * 
@@ -90,6 +252,7 @@ public class Track {
 				}
 			}
 			
+			final Track[] includedTracks = new Track[tracks.length];
 			for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
 				if (sequencer.getTrackMute(trackIndex)) {
 					// muted track, ignore
@@ -103,54 +266,483 @@ public class Track {
 					// currently recording track, ignore
 					continue;
 				}
-
-				mergedTrack.events.addAll(tracks[trackIndex].events);
+				includedTracks[trackIndex] = tracks[trackIndex];
 			}
 
-			sortEvents(mergedTrack);
-			
+			mergeTracks(includedTracks, mergedTrack);
 			return mergedTrack;
 		}
 
+		/**
+		 * Merge the {@link Track}s into the empty {@link Track}, and get the source track index of each merged event.<br />
+		 * The events at the same tick are ordered as same as {@link #sortEvents(Track)}, and the null element of the tracks is ignored.
+		 *
+		 * @param tracks the source tracks
+		 * @param mergedTrack the empty track to add the merged events
+		 * @return the index of the source track for each event of the merged track, -1 for the END_OF_TRACK
+		 */
+		@NonNull
+		public static int[] mergeTracks(@NonNull final Track[] tracks, @NonNull final Track mergedTrack) {
+			final List<MidiEvent[]> sourceEvents = new ArrayList<MidiEvent[]>(tracks.length);
+			final int[] sourceTrackIndices = new int[tracks.length];
+			for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
+				if (tracks[trackIndex] == null) {
+					continue;
+				}
+
+				tracks[trackIndex].loadEvents();
+				synchronized (tracks[trackIndex].events) {
+					sourceTrackIndices[sourceEvents.size()] = trackIndex;
+					sourceEvents.add(tracks[trackIndex].events.toArray(new MidiEvent[tracks[trackIndex].events.size()]));
+				}
+			}
+
+			mergedTrack.loadEvents();
+			synchronized (mergedTrack.events) {
+				mergedTrack.events.clear();
+				int[] sources = mergeEvents(sourceEvents, mergedTrack.events);
+				if (sources == null) {
+					// some source track is not sorted: concatenate and sort
+					mergedTrack.events.clear();
+					sources = concatenateAndSortEvents(sourceEvents, mergedTrack.events);
+				}
+
+				final int[] trackIndices = new int[sources.length + 1];
+				for (int i = 0; i < sources.length; i++) {
+					trackIndices[i] = sourceTrackIndices[sources[i]];
+				}
+
+				// add END_OF_TRACK to last
+				trackIndices[sources.length] = -1;
+				mergedTrack.endOfTrack = new MidiEvent(new MetaMessage(END_OF_TRACK), 0);
+				mergedTrack.events.add(mergedTrack.endOfTrack);
+				mergedTrack.updateEndOfTrack();
+				mergedTrack.modificationCount++;
+
+				return trackIndices;
+			}
+		}
+
+		/**
+		 * Merge the sorted events with the k-way merge, without END_OF_TRACK.<br />
+		 * The events are compared with the packed (tick, priority) keys,
+		 * and the events with the same key are merged in the order of the sources, as same as the stable sort.
+		 *
+		 * @param sourceEvents the sorted events of each source
+		 * @param mergedEvents the list to add the merged events
+		 * @return the source index of each merged event, null if some source is not sorted, or has the tick can't be packed. nothing is merged
+		 */
+		@Nullable
+		private static int[] mergeEvents(@NonNull final List<MidiEvent[]> sourceEvents, @NonNull final List<MidiEvent> mergedEvents) {
+			final int sourceCount = sourceEvents.size();
+			if (sourceCount > (1 << MERGE_KEY_SOURCE_BITS)) {
+				return null;
+			}
+			final MidiEvent[][] events = new MidiEvent[sourceCount][];
+			final long[][] keys = new long[sourceCount][];
+			final int[] counts = new int[sourceCount];
+			int totalCount = 0;
+			for (int source = 0; source < sourceCount; source++) {
+				// the snapshot is not modified, it may be read again by concatenateAndSortEvents
+				final MidiEvent[] snapshot = sourceEvents.get(source);
+				events[source] = snapshot;
+				keys[source] = new long[snapshot.length];
+				long previousKey = Long.MIN_VALUE;
+				for (int index = 0; index < snapshot.length; index++) {
+					final MidiEvent event = snapshot[index];
+					if (event == null || isEndOfTrack(event)) {
+						continue;
+					}
+					final long tick = event.getTick();
+					if (tick < 0 || tick >= SORT_KEY_MAX_TICK) {
+						return null;
+					}
+					final long key = (tick << SORT_KEY_PRIORITY_BITS) | getSortPriority(event);
+					if (key < previousKey) {
+						return null;
+					}
+					previousKey = key;
+					// compact the events, without END_OF_TRACK
+					if (counts[source] != index) {
+						if (events[source] == snapshot) {
+							// copied only if some events are shifted
+							events[source] = Arrays.copyOf(snapshot, snapshot.length);
+						}
+						events[source][counts[source]] = event;
+					}
+					keys[source][counts[source]] = key;
+					counts[source]++;
+				}
+				totalCount += counts[source];
+			}
+
+			if (mergedEvents instanceof ArrayList) {
+				((ArrayList<MidiEvent>) mergedEvents).ensureCapacity(totalCount + 1);
+			}
+
+			// the binary heap of the current key of each source, with the source index at the lower bits
+			final int[] positions = new int[sourceCount];
+			final long[] heap = new long[sourceCount];
+			int heapSize = 0;
+			for (int source = 0; source < sourceCount; source++) {
+				if (counts[source] > 0) {
+					heap[heapSize++] = (keys[source][0] << MERGE_KEY_SOURCE_BITS) | source;
+				}
+			}
+			for (int i = heapSize / 2 - 1; i >= 0; i--) {
+				siftDown(heap, heapSize, i);
+			}
+
+			final int[] sources = new int[totalCount];
+			int mergedCount = 0;
+			final int sourceMask = (1 << MERGE_KEY_SOURCE_BITS) - 1;
+			while (heapSize > 0) {
+				final int source = (int) (heap[0] & sourceMask);
+				mergedEvents.add(events[source][positions[source]]);
+				sources[mergedCount++] = source;
+				positions[source]++;
+
+				if (positions[source] < counts[source]) {
+					heap[0] = (keys[source][positions[source]] << MERGE_KEY_SOURCE_BITS) | source;
+				} else {
+					// the source is exhausted
+					heapSize--;
+					heap[0] = heap[heapSize];
+				}
+				siftDown(heap, heapSize, 0);
+			}
+			return sources;
+		}
+
+		/**
+		 * Concatenate the events, and sort them with the stable sort, without END_OF_TRACK
+		 *
+		 * @param sourceEvents the events of each source
+		 * @param mergedEvents the list to add the sorted events
+		 * @return the source index of each sorted event
+		 */
+		@NonNull
+		private static int[] concatenateAndSortEvents(@NonNull final List<MidiEvent[]> sourceEvents, @NonNull final List<MidiEvent> mergedEvents) {
+			final List<MidiEvent> concatenated = new ArrayList<MidiEvent>();
+			int[] concatenatedSources = new int[16];
+			for (int source = 0; source < sourceEvents.size(); source++) {
+				for (final MidiEvent event : sourceEvents.get(source)) {
+					if (event != null && !isEndOfTrack(event)) {
+						if (concatenated.size() == concatenatedSources.length) {
+							concatenatedSources = Arrays.copyOf(concatenatedSources, concatenatedSources.length * 2);
+						}
+						concatenatedSources[concatenated.size()] = source;
+						concatenated.add(event);
+					}
+				}
+			}
+
+			// sort the indices with the stable sort, to keep the source index with the event
+			final Integer[] order = new Integer[concatenated.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(final Integer lhs, final Integer rhs) {
+					return midiEventComparator.compare(concatenated.get(lhs), concatenated.get(rhs));
+				}
+			});
+
+			final int[] sources = new int[order.length];
+			for (int i = 0; i < order.length; i++) {
+				mergedEvents.add(concatenated.get(order[i]));
+				sources[i] = concatenatedSources[order[i]];
+			}
+			return sources;
+		}
+
+		/**
+		 * Move down the heap element to the right place
+		 *
+		 * @param heap the heap
+		 * @param heapSize the size of the heap
+		 * @param index the index of the element to move
+		 */
+		private static void siftDown(@NonNull final long[] heap, final int heapSize, final int index) {
+			final long value = heap[index];
+			int parent = index;
+			while (true) {
+				int child = parent * 2 + 1;
+				if (child >= heapSize) {
+					break;
+				}
+				if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+					child++;
+				}
+				if (value <= heap[child]) {
+					break;
+				}
+				heap[parent] = heap[child];
+				parent = child;
+			}
+			heap[parent] = value;
+		}
+
 		/**
 		 * Sort the {@link Track}'s {@link MidiEvent}, order by tick and events
 		 * 
 		 * @param track the Track
 		 */
 		public static void sortEvents(@NonNull final Track track) {
+			track.loadEvents();
 			synchronized (track.events) {
 				// remove all of END_OF_TRACK
-				final Collection<MidiEvent> filtered = new ArrayList<MidiEvent>();
+				final List<MidiEvent> filtered = new ArrayList<MidiEvent>(track.events.size());
 				for (final MidiEvent event : track.events) {
-					if (event != null && !Arrays.equals(END_OF_TRACK, event.getMessage().getMessage())) {
+					if (event != null && !isEndOfTrack(event)) {
 						filtered.add(event);
 					}
 				}
+
+				// sort the events
+				sortEventList(filtered);
 				track.events.clear();
 				track.events.addAll(filtered);
-				
-				// sort the events
-				Collections.sort(track.events, midiEventComparator);
-				
+
 				// add END_OF_TRACK to last
-				if (track.events.isEmpty()) {
-					track.events.add(new MidiEvent(new MetaMessage(END_OF_TRACK), 0));
-				} else {
-					track.events.add(new MidiEvent(new MetaMessage(END_OF_TRACK), track.events.get(track.events.size() - 1).getTick() + 1));
+				if (track.endOfTrack == null) {
+					track.endOfTrack = new MidiEvent(new MetaMessage(END_OF_TRACK), 0);
+				}
+				track.events.add(track.endOfTrack);
+				track.updateEndOfTrack();
+				track.modificationCount++;
+			}
+		}
+
+		/**
+		 * Filter of the {@link MidiEvent}s
+		 *
+		 * @author K.Shoji
+		 */
+		public interface EventFilter {
+			/**
+			 * Check if the event is accepted
+			 *
+			 * @param event the event
+			 * @return true if accepted
+			 */
+			boolean accept(@NonNull MidiEvent event);
+		}
+
+		/**
+		 * Replace the events in the tick range with the specified events, such as the punch-in recording.<br />
+		 * The events in the range accepted by the filter are removed, and the new events are merged with the remaining events.
+		 * Only the affected range is rewritten, the following events are moved at once and not sorted again.
+		 *
+		 * @param track the Track
+		 * @param fromTick the first tick of the range, inclusive
+		 * @param toTick the last tick of the range, inclusive
+		 * @param filter the filter of the events to remove, null to remove all events in the range
+		 * @param newEvents the events to add, END_OF_TRACK is ignored
+		 */
+		public static void replaceEvents(@NonNull final Track track, final long fromTick, final long toTick, @Nullable final EventFilter filter, @NonNull final List<MidiEvent> newEvents) {
+			final List<MidiEvent> insertedEvents = new ArrayList<MidiEvent>(newEvents.size());
+			for (final MidiEvent event : newEvents) {
+				if (event != null && !isEndOfTrack(event)) {
+					insertedEvents.add(event);
 				}
 			}
+			sortEventList(insertedEvents);
+
+			track.loadEvents();
+			synchronized (track.events) {
+				final List<MidiEvent> events = track.events;
+				final int eventCount = track.endOfTrack == null ? events.size() : events.size() - 1;
+
+				// the range to rewrite, including the new events out of the tick range
+				long rangeFrom = fromTick;
+				long rangeTo = toTick;
+				if (!insertedEvents.isEmpty()) {
+					rangeFrom = Math.min(rangeFrom, insertedEvents.get(0).getTick());
+					rangeTo = Math.max(rangeTo, insertedEvents.get(insertedEvents.size() - 1).getTick());
+				}
+				final int from = track.findTickIndex(rangeFrom, eventCount);
+				final int to = rangeTo == Long.MAX_VALUE ? eventCount : track.findTickIndex(rangeTo + 1, eventCount);
+
+				// merge the remaining events and the new events, the remaining event is placed first at the same order
+				final List<MidiEvent> mergedEvents = new ArrayList<MidiEvent>(to - from + insertedEvents.size());
+				int insertedIndex = 0;
+				for (int i = from; i < to; i++) {
+					final MidiEvent event = events.get(i);
+					if (event.getTick() >= fromTick && event.getTick() <= toTick && (filter == null || filter.accept(event))) {
+						// replaced
+						continue;
+					}
+					while (insertedIndex < insertedEvents.size() && midiEventComparator.compare(insertedEvents.get(insertedIndex), event) < 0) {
+						mergedEvents.add(insertedEvents.get(insertedIndex++));
+					}
+					mergedEvents.add(event);
+				}
+				mergedEvents.addAll(insertedEvents.subList(insertedIndex, insertedEvents.size()));
+
+				// overwrite the range, and move the following events at once
+				final int oldLength = to - from;
+				final int newLength = mergedEvents.size();
+				for (int i = 0; i < Math.min(oldLength, newLength); i++) {
+					events.set(from + i, mergedEvents.get(i));
+				}
+				if (newLength > oldLength) {
+					events.addAll(from + oldLength, mergedEvents.subList(oldLength, newLength));
+				} else if (newLength < oldLength) {
+					events.subList(from + newLength, to).clear();
+				}
+
+				track.updateEndOfTrack();
+				track.modificationCount++;
+			}
 		}
 	}
 
 	/**
-	 * Add {@link MidiEvent} to this {@link Track}
+	 * Constructor
+	 */
+	public Track() {
+		this(false);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param compactStorage true: store the events with {@link CompactMidiEventList}
+	 */
+	Track(final boolean compactStorage) {
+		if (compactStorage) {
+			events = new CompactMidiEventList();
+		} else {
+			events = new ArrayList<MidiEvent>();
+		}
+	}
+
+	/**
+	 * Load the events with the {@link TrackUtils.EventLoader}, if not loaded yet
+	 */
+	private void loadEvents() {
+		if (eventLoader == null) {
+			return;
+		}
+
+		synchronized (events) {
+			final TrackUtils.EventLoader loader = eventLoader;
+			if (loader != null) {
+				// cleared before loading, the loader adds the events to this track
+				eventLoader = null;
+				loader.loadEvents(this);
+			}
+		}
+	}
+
+	/**
+	 * Check if the event is End of Track
+	 *
+	 * @param event the event
+	 * @return true if the event is End of Track
+	 */
+	private static boolean isEndOfTrack(@NonNull final MidiEvent event) {
+		final MidiMessage message = event.getMessage();
+		return message instanceof MetaMessage && ((MetaMessage) message).getType() == MetaMessage.TYPE_END_OF_TRACK;
+	}
+
+	/**
+	 * Move the End of Track event to the next tick of the last event
+	 */
+	private void updateEndOfTrack() {
+		final MidiEvent endOfTrack = this.endOfTrack;
+		if (endOfTrack == null) {
+			return;
+		}
+
+		final int eventCount = events.size();
+		final long tick = eventCount > 1 ? events.get(eventCount - 2).getTick() + 1 : 0;
+		if (endOfTrack.getTick() != tick) {
+			endOfTrack.setTick(tick);
+			if (events instanceof CompactMidiEventList) {
+				// the stored event is not the same instance
+				events.set(eventCount - 1, endOfTrack);
+			}
+		}
+	}
+
+	/**
+	 * Find the index to insert the event, after the events with the same order
+	 *
+	 * @param event the event
+	 * @param eventCount the number of events, without End of Track
+	 * @return the index
+	 */
+	private int findInsertionIndex(@NonNull final MidiEvent event, final int eventCount) {
+		int low = 0;
+		int high = eventCount;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (midiEventComparator.compare(events.get(middle), event) <= 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Find the index of the first event at or after the tick
+	 *
+	 * @param tick the tick
+	 * @param eventCount the number of events, without End of Track
+	 * @return the index, eventCount if not found
+	 */
+	private int findTickIndex(final long tick, final int eventCount) {
+		int low = 0;
+		int high = eventCount;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (events.get(middle).getTick() < tick) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Add {@link MidiEvent} to this {@link Track}<br />
+	 * The events are kept in the order of tick and events, the End of Track is kept at the last.
+	 * If the tick of the added event is modified, {@link TrackUtils#sortEvents(Track)} must be called.
 	 * 
 	 * @param event to add
-	 * @return true if the event has been added
+	 * @return true if the event has been added, false if the End of Track already exists
 	 */
 	public boolean add(@NonNull final MidiEvent event) {
+		loadEvents();
 		synchronized (events) {
-			return events.add(event);
+			if (isEndOfTrack(event)) {
+				if (endOfTrack != null) {
+					return false;
+				}
+				// the tick is moved by the track, so the caller's event is not stored
+				endOfTrack = new MidiEvent(new MetaMessage(END_OF_TRACK), event.getTick());
+				events.add(endOfTrack);
+				updateEndOfTrack();
+				modificationCount++;
+				return true;
+			}
+
+			final int eventCount = endOfTrack == null ? events.size() : events.size() - 1;
+			if (eventCount == 0 || midiEventComparator.compare(events.get(eventCount - 1), event) <= 0) {
+				// fast path: added in order
+				events.add(eventCount, event);
+			} else {
+				events.add(findInsertionIndex(event, eventCount), event);
+			}
+			updateEndOfTrack();
+			modificationCount++;
+			return true;
 		}
 	}
 
@@ -163,6 +755,7 @@ public class Track {
 	 */
     @NonNull
     public MidiEvent get(final int index) throws ArrayIndexOutOfBoundsException {
+		loadEvents();
 		synchronized (events) {
 			return events.get(index);
 		}
@@ -175,8 +768,27 @@ public class Track {
 	 * @return true if the event has been removed
 	 */
 	public boolean remove(@NonNull final MidiEvent event) {
+		loadEvents();
 		synchronized (events) {
-			return events.remove(event);
+			if (isEndOfTrack(event)) {
+				if (endOfTrack == null) {
+					return false;
+				}
+
+				// the End of Track is always at the last
+				events.remove(events.size() - 1);
+				endOfTrack = null;
+				modificationCount++;
+				return true;
+			}
+
+			if (!events.remove(event)) {
+				return false;
+			}
+
+			updateEndOfTrack();
+			modificationCount++;
+			return true;
 		}
 	}
 
@@ -186,6 +798,7 @@ public class Track {
 	 * @return the number of events
 	 */
 	public int size() {
+		loadEvents();
 		synchronized (events) {
 			return events.size();
 		}
@@ -197,14 +810,14 @@ public class Track {
 	 * @return the length of ticks
 	 */
 	public long ticks() {
-		TrackUtils.sortEvents(this);
-
+		loadEvents();
 		synchronized (events) {
-			if (events.isEmpty()) {
-				return 0L;
+			if (endOfTrack == null) {
+				add(new MidiEvent(new MetaMessage(END_OF_TRACK), 0));
 			}
 
-			return events.get(events.size() - 1).getTick();
+			// the End of Track is always at the next tick of the last event
+			return endOfTrack.getTick();
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,205 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+import android.support.annotation.NonNull;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.Receiver;
+
+/**
+ * {@link Receiver} which delivers the messages to the wrapped {@link Receiver} on its own thread, used by {@link SequencerImpl}.<br />
+ * The messages are queued in the order, so the slow receiver doesn't delay the sender and the other receivers.
+ * The queue is not bounded, the messages are not dropped even if the wrapped receiver can't keep up.
+ *
+ * @author K.Shoji
+ */
+final class AsyncReceiver implements ScheduledReceiver, Flushable {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final int COMMAND_SEND = 0;
+    private static final int COMMAND_SEND_SCHEDULED = 1;
+    private static final int COMMAND_DISCARD_SCHEDULED = 2;
+    private static final int COMMAND_FLUSH = 3;
+
+    private final Receiver receiver;
+
+    // the ring buffer of the queued commands, guarded by this
+    private boolean isOpen = true;
+    private int[] commands = new int[INITIAL_CAPACITY];
+    private MidiMessage[] messages = new MidiMessage[INITIAL_CAPACITY];
+    private long[] timeStamps = new long[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Constructor, starts the delivering thread
+     *
+     * @param receiver the receiver to deliver the messages
+     */
+    AsyncReceiver(@NonNull final Receiver receiver) {
+        this.receiver = receiver;
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverMessages();
+            }
+        });
+        thread.setName("AsyncReceiver_" + thread.getId());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void send(@NonNull final MidiMessage message, final long timeStamp) {
+        enqueue(COMMAND_SEND, (MidiMessage) message.clone(), timeStamp);
+    }
+
+    @Override
+    public void sendScheduled(@NonNull final MidiMessage message, final long deliveryTime) {
+        if (receiver instanceof ScheduledReceiver) {
+            enqueue(COMMAND_SEND_SCHEDULED, (MidiMessage) message.clone(), deliveryTime);
+        } else {
+            // the receiver can't schedule: deliver immediately, same as the direct sending
+            enqueue(COMMAND_SEND, (MidiMessage) message.clone(), 0);
+        }
+    }
+
+    @Override
+    public void discardScheduled() {
+        synchronized (this) {
+            // remove the scheduled messages not passed to the receiver yet
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                final int index = (head + i) % commands.length;
+                if (commands[index] != COMMAND_SEND_SCHEDULED) {
+                    final int destination = (head + count) % commands.length;
+                    commands[destination] = commands[index];
+                    messages[destination] = messages[index];
+                    timeStamps[destination] = timeStamps[index];
+                    count++;
+                }
+            }
+            for (int i = count; i < size; i++) {
+                messages[(head + i) % commands.length] = null;
+            }
+            size = count;
+        }
+
+        if (receiver instanceof ScheduledReceiver) {
+            // the scheduled messages already passed to the receiver
+            enqueue(COMMAND_DISCARD_SCHEDULED, null, 0);
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (receiver instanceof Flushable) {
+            enqueue(COMMAND_FLUSH, null, 0);
+        }
+    }
+
+    /**
+     * Stop the delivering thread after the queued messages are delivered, such as the NoteOff messages on stopping.<br />
+     * The wrapped receiver is not closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            isOpen = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Add the command to the queue
+     *
+     * @param command the command
+     * @param message the message, null for the commands without message
+     * @param timeStamp the time stamp, or the delivery time
+     */
+    private synchronized void enqueue(final int command, final MidiMessage message, final long timeStamp) {
+        if (!isOpen) {
+            return;
+        }
+
+        if (size == commands.length) {
+            // grow the ring buffer, with moving the queued commands to the head
+            final int capacity = commands.length * 2;
+            final int[] newCommands = new int[capacity];
+            final MidiMessage[] newMessages = new MidiMessage[capacity];
+            final long[] newTimeStamps = new long[capacity];
+            for (int i = 0; i < size; i++) {
+                final int index = (head + i) % commands.length;
+                newCommands[i] = commands[index];
+                newMessages[i] = messages[index];
+                newTimeStamps[i] = timeStamps[index];
+            }
+            commands = newCommands;
+            messages = newMessages;
+            timeStamps = newTimeStamps;
+            head = 0;
+        }
+
+        final int tail = (head + size) % commands.length;
+        commands[tail] = command;
+        messages[tail] = message;
+        timeStamps[tail] = timeStamp;
+        size++;
+        notifyAll();
+    }
+
+    /**
+     * Deliver the queued messages to the receiver, until closed and the queue becomes empty
+     */
+    private void deliverMessages() {
+        while (true) {
+            final int command;
+            final MidiMessage message;
+            final long timeStamp;
+            synchronized (this) {
+                while (size == 0 && isOpen) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException ignored) {
+                        // ignore exception
+                    }
+                }
+                if (size == 0) {
+                    // closed
+                    break;
+                }
+
+                command = commands[head];
+                message = messages[head];
+                timeStamp = timeStamps[head];
+                messages[head] = null;
+                head = (head + 1) % commands.length;
+                size--;
+            }
+
+            // deliver without locking, the sender is not blocked
+            switch (command) {
+                case COMMAND_SEND:
+                    receiver.send(message, timeStamp);
+                    break;
+                case COMMAND_SEND_SCHEDULED:
+                    ((ScheduledReceiver) receiver).sendScheduled(message, timeStamp);
+                    break;
+                case COMMAND_DISCARD_SCHEDULED:
+                    ((ScheduledReceiver) receiver).discardScheduled();
+                    break;
+                case COMMAND_FLUSH:
+                    try {
+                        ((Flushable) receiver).flush();
+                    } catch (final IOException ignored) {
+                        // ignore exception
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,557 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.Receiver;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+
+/**
+ * Seek index for the {@link PlaybackTimeline}.<br />
+ * Holds the snapshots of the channel state at regular tick intervals, so seeking restores the nearest snapshot and replays only the events after it.
+ *
+ * @author K.Shoji
+ */
+final class ChaseIndex {
+    static final int NOT_SET = -1;
+    private static final int MINIMUM_EVENTS_BETWEEN_SNAPSHOTS = 256;
+
+    // the kind of the parameter selected by the RPN / NRPN
+    private static final byte PARAMETER_RPN = 0;
+    private static final byte PARAMETER_NRPN = 1;
+
+    /**
+     * The channel state, chased from the head of the timeline
+     */
+    static final class ChaseState {
+        private final byte[] controllers = new byte[16 * 128];
+        private final byte[] programs = new byte[16];
+        private final byte[] channelPressures = new byte[16];
+        private final short[] pitchBends = new short[16];
+        // the kind of the parameter selected last, PARAMETER_RPN, PARAMETER_NRPN or NOT_SET
+        private final byte[] selectedParameters = new byte[16];
+        // the data entry of each RPN / NRPN, in the order of the first data entry
+        private int parameterCount;
+        private int[] parameterKeys = new int[16];
+        private byte[] parameterMsbs = new byte[16];
+        private byte[] parameterLsbs = new byte[16];
+        private int tempoInMPQ;
+        private int sysexCount;
+
+        /**
+         * Constructor, no state has been set
+         */
+        ChaseState() {
+            Arrays.fill(controllers, (byte) NOT_SET);
+            Arrays.fill(programs, (byte) NOT_SET);
+            Arrays.fill(channelPressures, (byte) NOT_SET);
+            Arrays.fill(pitchBends, (short) NOT_SET);
+            Arrays.fill(selectedParameters, (byte) NOT_SET);
+            parameterCount = 0;
+            tempoInMPQ = NOT_SET;
+            sysexCount = 0;
+        }
+
+        /**
+         * Copy the state from the another one
+         *
+         * @param source the source state
+         */
+        void copyFrom(@NonNull final ChaseState source) {
+            System.arraycopy(source.controllers, 0, controllers, 0, controllers.length);
+            System.arraycopy(source.programs, 0, programs, 0, programs.length);
+            System.arraycopy(source.channelPressures, 0, channelPressures, 0, channelPressures.length);
+            System.arraycopy(source.pitchBends, 0, pitchBends, 0, pitchBends.length);
+            System.arraycopy(source.selectedParameters, 0, selectedParameters, 0, selectedParameters.length);
+            if (parameterKeys.length < source.parameterCount) {
+                parameterKeys = new int[source.parameterKeys.length];
+                parameterMsbs = new byte[source.parameterKeys.length];
+                parameterLsbs = new byte[source.parameterKeys.length];
+            }
+            parameterCount = source.parameterCount;
+            System.arraycopy(source.parameterKeys, 0, parameterKeys, 0, parameterCount);
+            System.arraycopy(source.parameterMsbs, 0, parameterMsbs, 0, parameterCount);
+            System.arraycopy(source.parameterLsbs, 0, parameterLsbs, 0, parameterCount);
+            tempoInMPQ = source.tempoInMPQ;
+            sysexCount = source.sysexCount;
+        }
+
+        /**
+         * Apply the event to the state
+         *
+         * @param packedMessage the packed message
+         * @param message the message of the event
+         */
+        void apply(final int packedMessage, @NonNull final MidiMessage message) {
+            switch (PlaybackTimeline.getKind(packedMessage)) {
+                case PlaybackTimeline.KIND_TEMPO:
+                    tempoInMPQ = PlaybackTimeline.getTempoInMPQ(packedMessage);
+                    break;
+                case PlaybackTimeline.KIND_SYSEX:
+                    sysexCount++;
+                    if (isSystemReset(message)) {
+                        // the device has been reset: the state before the reset is not sent
+                        resetChannels();
+                    }
+                    break;
+                case PlaybackTimeline.KIND_SHORT:
+                    final int status = PlaybackTimeline.getStatus(packedMessage);
+                    final int channel = status & ShortMessage.MASK_CHANNEL;
+                    final int data1 = PlaybackTimeline.getData1(packedMessage);
+                    final int data2 = PlaybackTimeline.getData2(packedMessage);
+                    switch (status & ShortMessage.MASK_EVENT) {
+                        case ShortMessage.CONTROL_CHANGE:
+                            if (data1 == 121) {
+                                resetControllers(channel);
+                            } else if (data1 == 6 || data1 == 38) {
+                                setDataEntry(channel, data1 == 6, (byte) data2);
+                            } else if (data1 == 96 || data1 == 97) {
+                                // data increment / decrement is not a state
+                            } else if (data1 < 120) {
+                                if (data1 == 101 || data1 == 100) {
+                                    selectedParameters[channel] = PARAMETER_RPN;
+                                } else if (data1 == 99 || data1 == 98) {
+                                    selectedParameters[channel] = PARAMETER_NRPN;
+                                }
+                                // channel mode messages are not chased
+                                controllers[channel * 128 + data1] = (byte) data2;
+                            }
+                            break;
+                        case ShortMessage.PROGRAM_CHANGE:
+                            programs[channel] = (byte) data1;
+                            break;
+                        case ShortMessage.CHANNEL_PRESSURE:
+                            channelPressures[channel] = (byte) data1;
+                            break;
+                        case ShortMessage.PITCH_BEND:
+                            pitchBends[channel] = (short) ((data2 << 7) | data1);
+                            break;
+                        default:
+                            break;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Apply the Reset All Controllers(RP-015) to the state.<br />
+         * The reset values are recorded, so the controllers changed before seeking are reset on the device. The other controllers are kept.
+         *
+         * @param channel the channel
+         */
+        private void resetControllers(final int channel) {
+            final int offset = channel * 128;
+            // modulation
+            controllers[offset + 1] = 0;
+            // expression
+            controllers[offset + 11] = 127;
+            // sustain, portamento, sostenuto, soft pedal
+            for (int controller = 64; controller <= 67; controller++) {
+                controllers[offset + controller] = 0;
+            }
+            // NRPN and RPN: null, the values of the parameters are kept
+            controllers[offset + 98] = 127;
+            controllers[offset + 99] = 127;
+            controllers[offset + 100] = 127;
+            controllers[offset + 101] = 127;
+            selectedParameters[channel] = PARAMETER_RPN;
+
+            pitchBends[channel] = 8192;
+            channelPressures[channel] = 0;
+        }
+
+        /**
+         * Apply the system reset to the state.<br />
+         * The all channels are in the default state of the device, so nothing needs to be sent.
+         */
+        private void resetChannels() {
+            Arrays.fill(controllers, (byte) NOT_SET);
+            Arrays.fill(programs, (byte) NOT_SET);
+            Arrays.fill(channelPressures, (byte) NOT_SET);
+            Arrays.fill(pitchBends, (short) NOT_SET);
+            Arrays.fill(selectedParameters, (byte) NOT_SET);
+            parameterCount = 0;
+        }
+
+        /**
+         * Apply the data entry to the selected RPN / NRPN
+         *
+         * @param channel the channel
+         * @param isMsb true: data entry MSB(6), false: data entry LSB(38)
+         * @param value the value
+         */
+        private void setDataEntry(final int channel, final boolean isMsb, final byte value) {
+            final int key = getSelectedParameterKey(channel);
+            if (key == NOT_SET) {
+                // no parameter selected
+                return;
+            }
+
+            int index = 0;
+            while (index < parameterCount && parameterKeys[index] != key) {
+                index++;
+            }
+            if (index == parameterCount) {
+                if (parameterCount == parameterKeys.length) {
+                    parameterKeys = Arrays.copyOf(parameterKeys, parameterCount * 2);
+                    parameterMsbs = Arrays.copyOf(parameterMsbs, parameterCount * 2);
+                    parameterLsbs = Arrays.copyOf(parameterLsbs, parameterCount * 2);
+                }
+                parameterKeys[index] = key;
+                parameterMsbs[index] = (byte) NOT_SET;
+                parameterLsbs[index] = (byte) NOT_SET;
+                parameterCount++;
+            }
+
+            if (isMsb) {
+                parameterMsbs[index] = value;
+            } else {
+                parameterLsbs[index] = value;
+            }
+        }
+
+        /**
+         * Get the key of the selected RPN / NRPN
+         *
+         * @param channel the channel
+         * @return the key, (channel << 16) | (kind << 14) | (MSB << 7) | LSB. {@link #NOT_SET} if not selected, or the null parameter is selected
+         */
+        private int getSelectedParameterKey(final int channel) {
+            final int offset = channel * 128;
+            final byte msb;
+            final byte lsb;
+            if (selectedParameters[channel] == PARAMETER_RPN) {
+                msb = controllers[offset + 101];
+                lsb = controllers[offset + 100];
+            } else if (selectedParameters[channel] == PARAMETER_NRPN) {
+                msb = controllers[offset + 99];
+                lsb = controllers[offset + 98];
+            } else {
+                return NOT_SET;
+            }
+
+            if (msb == NOT_SET || lsb == NOT_SET || (msb == 127 && lsb == 127)) {
+                return NOT_SET;
+            }
+            return (channel << 16) | (selectedParameters[channel] << 14) | (msb << 7) | lsb;
+        }
+
+        /**
+         * Get the last tempo
+         *
+         * @return the tempo in MPQ, {@link #NOT_SET} if no tempo changes found
+         */
+        int getTempoInMPQ() {
+            return tempoInMPQ;
+        }
+    }
+
+    private final PlaybackTimeline timeline;
+    private final int[] sysexEventIndices;
+    private final int snapshotCount;
+    private final int[] snapshotEventIndices;
+    private final ChaseState[] snapshots;
+
+    /**
+     * Constructor
+     *
+     * @param timeline the timeline
+     * @param sysexEventIndices the event indices of the system exclusive messages
+     * @param snapshotEventIndices the event indices of the snapshots taken
+     * @param snapshots the snapshots
+     * @param snapshotCount the number of the snapshots
+     */
+    private ChaseIndex(@NonNull final PlaybackTimeline timeline, @NonNull final int[] sysexEventIndices, @NonNull final int[] snapshotEventIndices, @NonNull final ChaseState[] snapshots, final int snapshotCount) {
+        this.timeline = timeline;
+        this.sysexEventIndices = sysexEventIndices;
+        this.snapshotEventIndices = snapshotEventIndices;
+        this.snapshots = snapshots;
+        this.snapshotCount = snapshotCount;
+    }
+
+    /**
+     * Build the {@link ChaseIndex} for the {@link PlaybackTimeline}
+     *
+     * @param timeline the timeline
+     * @param snapshotInterval the interval of the snapshots in ticks
+     * @return the chase index
+     */
+    @NonNull
+    static ChaseIndex build(@NonNull final PlaybackTimeline timeline, final long snapshotInterval) {
+        final int size = timeline.size();
+        final long interval = Math.max(1, snapshotInterval);
+
+        int sysexCount = 0;
+        int[] sysexEventIndices = new int[16];
+
+        int snapshotCount = 1;
+        int[] snapshotEventIndices = new int[16];
+        ChaseState[] snapshots = new ChaseState[16];
+        // the initial state
+        snapshotEventIndices[0] = 0;
+        snapshots[0] = new ChaseState();
+
+        final ChaseState state = new ChaseState();
+        long nextSnapshotTick = interval;
+        for (int i = 0; i < size; i++) {
+            final long tick = timeline.getTick(i);
+            if (tick >= nextSnapshotTick) {
+                if (i - snapshotEventIndices[snapshotCount - 1] >= MINIMUM_EVENTS_BETWEEN_SNAPSHOTS) {
+                    if (snapshotCount == snapshots.length) {
+                        snapshotEventIndices = Arrays.copyOf(snapshotEventIndices, snapshotCount * 2);
+                        snapshots = Arrays.copyOf(snapshots, snapshotCount * 2);
+                    }
+
+                    // the snapshot contains the events before the index
+                    final ChaseState snapshot = new ChaseState();
+                    snapshot.copyFrom(state);
+                    snapshotEventIndices[snapshotCount] = i;
+                    snapshots[snapshotCount] = snapshot;
+                    snapshotCount++;
+                }
+                nextSnapshotTick = (tick / interval + 1) * interval;
+            }
+
+            final int packedMessage = timeline.getPackedMessage(i);
+            if (PlaybackTimeline.getKind(packedMessage) == PlaybackTimeline.KIND_SYSEX) {
+                if (sysexCount == sysexEventIndices.length) {
+                    sysexEventIndices = Arrays.copyOf(sysexEventIndices, sysexCount * 2);
+                }
+                sysexEventIndices[sysexCount++] = i;
+            }
+            state.apply(packedMessage, timeline.getMessage(i));
+        }
+
+        return new ChaseIndex(timeline, sysexEventIndices, snapshotEventIndices, snapshots, snapshotCount);
+    }
+
+    /**
+     * Restore the state at the specified tick
+     *
+     * @param tick the tick
+     * @param state the state to be restored
+     * @return the first event index at or after the tick
+     */
+    int restore(final long tick, @NonNull final ChaseState state) {
+        final int targetIndex = timeline.indexOfTick(tick);
+
+        // find the last snapshot at or before the target
+        int low = 0;
+        int high = snapshotCount - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (snapshotEventIndices[middle] <= targetIndex) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        // replay only the tail after the snapshot
+        state.copyFrom(snapshots[low]);
+        for (int i = snapshotEventIndices[low]; i < targetIndex; i++) {
+            state.apply(timeline.getPackedMessage(i), timeline.getMessage(i));
+        }
+
+        return targetIndex;
+    }
+
+    /**
+     * Send the minimal set of the messages to reproduce the state
+     *
+     * @param state the state
+     * @param receiver the receiver
+     */
+    void send(@NonNull final ChaseState state, @NonNull final Receiver receiver) {
+        // system exclusive messages still effective, in the original order
+        final int[] effectiveSysexIndices = findEffectiveSysex(state.sysexCount);
+        for (final int sysexIndex : effectiveSysexIndices) {
+            receiver.send(timeline.getMessage(sysexIndex), 0);
+        }
+
+        for (int channel = 0; channel < 16; channel++) {
+            final int offset = channel * 128;
+
+            // bank select, then program change
+            sendControlChange(receiver, channel, 0, state.controllers[offset]);
+            sendControlChange(receiver, channel, 32, state.controllers[offset + 32]);
+            if (state.programs[channel] != NOT_SET) {
+                send(receiver, ShortMessage.PROGRAM_CHANGE | channel, state.programs[channel], 0);
+            }
+
+            for (int controller = 1; controller < 120; controller++) {
+                if (controller == 32 || isParameterController(controller)) {
+                    continue;
+                }
+                sendControlChange(receiver, channel, controller, state.controllers[offset + controller]);
+            }
+
+            // each RPN / NRPN: select, then data entry
+            for (int i = 0; i < state.parameterCount; i++) {
+                final int key = state.parameterKeys[i];
+                if (key >>> 16 != channel) {
+                    continue;
+                }
+                final int selectMsb = ((key >> 14) & 1) == PARAMETER_RPN ? 101 : 99;
+                send(receiver, ShortMessage.CONTROL_CHANGE | channel, selectMsb, (key >> 7) & 0x7f);
+                send(receiver, ShortMessage.CONTROL_CHANGE | channel, selectMsb - 1, key & 0x7f);
+                sendControlChange(receiver, channel, 6, state.parameterMsbs[i]);
+                sendControlChange(receiver, channel, 38, state.parameterLsbs[i]);
+            }
+            // the last selected parameter
+            if (state.selectedParameters[channel] == PARAMETER_RPN) {
+                sendControlChange(receiver, channel, 101, state.controllers[offset + 101]);
+                sendControlChange(receiver, channel, 100, state.controllers[offset + 100]);
+            } else if (state.selectedParameters[channel] == PARAMETER_NRPN) {
+                sendControlChange(receiver, channel, 99, state.controllers[offset + 99]);
+                sendControlChange(receiver, channel, 98, state.controllers[offset + 98]);
+            }
+
+            if (state.pitchBends[channel] != NOT_SET) {
+                send(receiver, ShortMessage.PITCH_BEND | channel, state.pitchBends[channel] & 0x7f, (state.pitchBends[channel] >> 7) & 0x7f);
+            }
+            if (state.channelPressures[channel] != NOT_SET) {
+                send(receiver, ShortMessage.CHANNEL_PRESSURE | channel, state.channelPressures[channel], 0);
+            }
+        }
+    }
+
+    /**
+     * Find the system exclusive messages which are still effective.<br />
+     * The messages before the last system reset(GM / GM2 System On, GM System Off, GS Reset, XG System On) are discarded,
+     * and the same messages or the parameter changes to the same address are sent only once, at the last position.
+     *
+     * @param sysexCount the number of the system exclusive messages to chase
+     * @return the event indices of the effective messages, in the original order
+     */
+    @NonNull
+    private int[] findEffectiveSysex(final int sysexCount) {
+        final int[] effectiveIndices = new int[sysexCount];
+        int effectiveCount = 0;
+        final Set<ByteBuffer> sentKeys = new HashSet<ByteBuffer>();
+
+        // from the last message, until the last system reset
+        for (int i = sysexCount - 1; i >= 0; i--) {
+            final byte[] message = timeline.getMessage(sysexEventIndices[i]).getMessage();
+            final ByteBuffer key = createSysexKey(message);
+            if (key != null && !sentKeys.add(key)) {
+                // overwritten by the later message
+                continue;
+            }
+
+            effectiveIndices[effectiveCount++] = sysexEventIndices[i];
+            if (isSystemReset(timeline.getMessage(sysexEventIndices[i]))) {
+                break;
+            }
+        }
+
+        // reverse to the original order
+        final int[] result = new int[effectiveCount];
+        for (int i = 0; i < effectiveCount; i++) {
+            result[i] = effectiveIndices[effectiveCount - 1 - i];
+        }
+        return result;
+    }
+
+    /**
+     * Create the key to identify what the system exclusive message sets
+     *
+     * @param message the message
+     * @return the key, null if the message can't be de-duplicated(such as the divided message)
+     */
+    @Nullable
+    private static ByteBuffer createSysexKey(@NonNull final byte[] message) {
+        if (message.length < 2 || (message[0] & 0xff) != 0xf0 || (message[message.length - 1] & 0xff) != 0xf7) {
+            return null;
+        }
+
+        final int headerLength;
+        if (message.length > 10 && message[1] == 0x41 && message[4] == 0x12) {
+            // Roland DT1: F0 41 dev model 12 address(3) data... checksum F7
+            headerLength = 8;
+        } else if (message.length > 8 && message[1] == 0x43 && (message[2] & 0xf0) == 0x10) {
+            // Yamaha parameter change: F0 43 1n model address(3) data... F7
+            headerLength = 7;
+        } else {
+            return ByteBuffer.wrap(message);
+        }
+
+        // the parameter address, and the data length
+        final ByteBuffer key = ByteBuffer.allocate(headerLength + 4);
+        key.put(message, 0, headerLength);
+        key.putInt(message.length);
+        key.flip();
+        return key;
+    }
+
+    /**
+     * Check if the system exclusive message resets the all parameters
+     *
+     * @param message the message
+     * @return true if the message is GM / GM2 System On, GM System Off, GS Reset, or XG System On
+     */
+    private static boolean isSystemReset(@NonNull final MidiMessage message) {
+        final int length = message.getLength();
+        if (length < 6 || message.getStatus() != 0xf0) {
+            return false;
+        }
+        if (length == 6 && message.getByte(1) == 0x7e && message.getByte(3) == 0x09 && message.getByte(4) >= 0x01 && message.getByte(4) <= 0x03) {
+            // F0 7E dev 09 01(GM1 on) / 02(GM off) / 03(GM2 on) F7
+            return true;
+        }
+        if (length == 11 && message.getByte(1) == 0x41 && message.getByte(3) == 0x42 && message.getByte(4) == 0x12 && message.getByte(5) == 0x40 && message.getByte(6) == 0x00 && message.getByte(7) == 0x7f) {
+            // F0 41 dev 42 12 40 00 7F 00 41 F7
+            return true;
+        }
+        // F0 43 1n 4C 00 00 7E 00 F7
+        return length == 9 && message.getByte(1) == 0x43 && (message.getByte(2) & 0xf0) == 0x10 && message.getByte(3) == 0x4c && message.getByte(4) == 0x00 && message.getByte(5) == 0x00 && message.getByte(6) == 0x7e && message.getByte(7) == 0x00;
+    }
+
+    /**
+     * Check if the controller is sent with the RPN / NRPN, or not chased
+     *
+     * @param controller the controller number
+     * @return true if the controller is the data entry, data increment / decrement, or RPN / NRPN select
+     */
+    private static boolean isParameterController(final int controller) {
+        return controller == 6 || controller == 38 || (controller >= 96 && controller <= 101);
+    }
+
+    /**
+     * Send the control change message if the value has been set
+     *
+     * @param receiver the receiver
+     * @param channel the channel
+     * @param controller the controller number
+     * @param value the value, or {@link #NOT_SET}
+     */
+    private static void sendControlChange(@NonNull final Receiver receiver, final int channel, final int controller, final byte value) {
+        if (value != NOT_SET) {
+            send(receiver, ShortMessage.CONTROL_CHANGE | channel, controller, value);
+        }
+    }
+
+    /**
+     * Send the short message
+     *
+     * @param receiver the receiver
+     * @param status the status
+     * @param data1 the first data
+     * @param data2 the second data
+     */
+    private static void send(@NonNull final Receiver receiver, final int status, final int data1, final int data2) {
+        try {
+            receiver.send(new ShortMessage(status, data1, data2), 0);
+        } catch (final InvalidMidiDataException ignored) {
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import jp.kshoji.javax.sound.midi.MidiMessage;
+
+/**
+ * Dispatcher of the event listener calls, used by {@link SequencerImpl}.<br />
+ * The messages are queued into the bounded lock-free queue, and the listeners are called on the {@link Executor}.
+ * So the posting thread(such as the sequencer thread) never waits for the listeners, unless {@link EventListenerOverflowPolicy#WAIT} is specified.
+ *
+ * @author K.Shoji
+ */
+final class EventListenerDispatcher {
+    // must be the power of two
+    private static final int QUEUE_CAPACITY = 1024;
+
+    /**
+     * Receives the dispatched messages on the executor
+     *
+     * @author K.Shoji
+     */
+    interface Callback {
+        /**
+         * Call the event listeners for the message
+         *
+         * @param message the message
+         */
+        void dispatch(@NonNull MidiMessage message);
+    }
+
+    private final Callback callback;
+
+    // the bounded multi producer queue: the sequence of each slot tells the slot is writable or readable
+    private final AtomicReferenceArray<MidiMessage> messages = new AtomicReferenceArray<MidiMessage>(QUEUE_CAPACITY);
+    private final AtomicLongArray sequences = new AtomicLongArray(QUEUE_CAPACITY);
+    private final AtomicLong enqueueIndex = new AtomicLong(0);
+    private final AtomicLong dequeueIndex = new AtomicLong(0);
+
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+    private final AtomicLong discardedCount = new AtomicLong(0);
+    private volatile EventListenerOverflowPolicy overflowPolicy = EventListenerOverflowPolicy.DISCARD_OLDEST;
+
+    @Nullable
+    private volatile Executor executor = null;
+    // created if the executor is not specified
+    @Nullable
+    private volatile ExecutorService defaultExecutor = null;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                MidiMessage message;
+                while ((message = poll()) != null) {
+                    callback.dispatch(message);
+                }
+            } finally {
+                isDrainScheduled.set(false);
+                if (enqueueIndex.get() != dequeueIndex.get()) {
+                    // posted while finishing
+                    scheduleDrain();
+                }
+            }
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param callback the callback to call the listeners
+     */
+    EventListenerDispatcher(@NonNull final Callback callback) {
+        this.callback = callback;
+        for (int i = 0; i < QUEUE_CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Set the executor to call the listeners
+     *
+     * @param executor the executor, null to use the dedicated thread
+     */
+    void setExecutor(@Nullable final Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Set the behavior when the queue is full
+     *
+     * @param overflowPolicy the policy
+     */
+    void setOverflowPolicy(@NonNull final EventListenerOverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Get the behavior when the queue is full
+     *
+     * @return the policy
+     */
+    @NonNull
+    EventListenerOverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Get the number of the messages discarded by the queue overflow
+     *
+     * @return the number of the messages
+     */
+    long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    /**
+     * Queue the message to call the listeners, may be called from any thread
+     *
+     * @param message the message, must not be modified after posting
+     */
+    void post(@NonNull final MidiMessage message) {
+        while (!offer(message)) {
+            switch (overflowPolicy) {
+                case DISCARD_NEWEST:
+                    discardedCount.incrementAndGet();
+                    return;
+
+                case WAIT:
+                    scheduleDrain();
+                    Thread.yield();
+                    break;
+
+                case DISCARD_OLDEST:
+                default:
+                    if (poll() != null) {
+                        discardedCount.incrementAndGet();
+                    }
+                    break;
+            }
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Stop the dedicated thread, the queued messages are discarded
+     */
+    void shutdown() {
+        while (poll() != null) {
+            // discard
+        }
+
+        synchronized (this) {
+            if (defaultExecutor != null) {
+                defaultExecutor.shutdown();
+                defaultExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Add the message to the queue
+     *
+     * @param message the message
+     * @return false if the queue is full
+     */
+    private boolean offer(@NonNull final MidiMessage message) {
+        long index = enqueueIndex.get();
+        while (true) {
+            final int position = (int) (index & (QUEUE_CAPACITY - 1));
+            final long difference = sequences.get(position) - index;
+            if (difference == 0) {
+                if (enqueueIndex.compareAndSet(index, index + 1)) {
+                    messages.set(position, message);
+                    // publish the slot to the reader
+                    sequences.set(position, index + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                // full
+                return false;
+            }
+            index = enqueueIndex.get();
+        }
+    }
+
+    /**
+     * Remove the oldest message from the queue
+     *
+     * @return the message, null if the queue is empty
+     */
+    @Nullable
+    private MidiMessage poll() {
+        long index = dequeueIndex.get();
+        while (true) {
+            final int position = (int) (index & (QUEUE_CAPACITY - 1));
+            final long difference = sequences.get(position) - (index + 1);
+            if (difference == 0) {
+                if (dequeueIndex.compareAndSet(index, index + 1)) {
+                    final MidiMessage message = messages.get(position);
+                    messages.set(position, null);
+                    // release the slot to the writer
+                    sequences.set(position, index + QUEUE_CAPACITY);
+                    return message;
+                }
+            } else if (difference < 0) {
+                // empty
+                return null;
+            }
+            index = dequeueIndex.get();
+        }
+    }
+
+    /**
+     * Start draining the queue on the executor, if not started yet
+     */
+    private void scheduleDrain() {
+        if (!isDrainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        Executor currentExecutor = executor;
+        if (currentExecutor == null) {
+            currentExecutor = defaultExecutor;
+        }
+        if (currentExecutor == null) {
+            synchronized (this) {
+                if (defaultExecutor == null) {
+                    defaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull final Runnable runnable) {
+                            final Thread thread = new Thread(runnable);
+                            thread.setName("EventListenerDispatcher_" + thread.getId());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+                currentExecutor = defaultExecutor;
+            }
+        }
+        try {
+            currentExecutor.execute(drainTask);
+        } catch (final RejectedExecutionException ignored) {
+            // the executor has been shut down, the queued messages are dispatched on the next posting
+            isDrainScheduled.set(false);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+/**
+ * The behavior of the {@link SequencerImpl}, when the queue of the event listener dispatching is full.
+ *
+ * @author K.Shoji
+ */
+public enum EventListenerOverflowPolicy {
+    /**
+     * Discard the oldest queued event, and queue the new event
+     */
+    DISCARD_OLDEST,
+
+    /**
+     * Discard the new event
+     */
+    DISCARD_NEWEST,
+
+    /**
+     * Wait until the queue has the space. The sequencer may be delayed by the slow listener.
+     */
+    WAIT
+}
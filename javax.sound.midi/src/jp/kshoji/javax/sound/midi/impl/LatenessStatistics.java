@@ -0,0 +1,66 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+/**
+ * Measured lateness of the events dispatched by the {@link SequencerImpl}.<br />
+ * Written by the sequencer thread, and read or reset from any thread. The values are guarded by this, so the statistics are read consistently.
+ *
+ * @author K.Shoji
+ */
+final class LatenessStatistics {
+    private long eventCount = 0;
+    private long totalLatenessNanos = 0;
+    private long maxLatenessNanos = 0;
+
+    /**
+     * Record the lateness of the dispatched event
+     *
+     * @param latenessNanos the lateness in nanoseconds
+     */
+    synchronized void record(final long latenessNanos) {
+        final long lateness = Math.max(0, latenessNanos);
+        eventCount++;
+        totalLatenessNanos += lateness;
+        if (lateness > maxLatenessNanos) {
+            maxLatenessNanos = lateness;
+        }
+    }
+
+    /**
+     * Clear the statistics
+     */
+    synchronized void reset() {
+        eventCount = 0;
+        totalLatenessNanos = 0;
+        maxLatenessNanos = 0;
+    }
+
+    /**
+     * Get the number of the recorded events
+     *
+     * @return the number of the events
+     */
+    synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Get the average lateness
+     *
+     * @return the average lateness in nanoseconds
+     */
+    synchronized long getAverageLatenessNanos() {
+        if (eventCount == 0) {
+            return 0;
+        }
+        return totalLatenessNanos / eventCount;
+    }
+
+    /**
+     * Get the maximum lateness
+     *
+     * @return the maximum lateness in nanoseconds
+     */
+    synchronized long getMaxLatenessNanos() {
+        return maxLatenessNanos;
+    }
+}
@@ -0,0 +1,304 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MidiEvent;
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.Track;
+
+/**
+ * Recording engine of the {@link SequencerImpl}.<br />
+ * The incoming messages are written into the ring buffer of each {@link Input} without locking, with the time stamp of the device.
+ * The merger thread converts the time stamps to the ticks, and adds the events to the recording {@link Track}.
+ * The time stamps are converted with the tempo the sequencer is playing at, the tempo changes while recording are notified with {@link #changeTempo(long, double, float)}.
+ *
+ * @author K.Shoji
+ */
+final class MidiRecorder {
+    // must be the power of two
+    private static final int INPUT_BUFFER_CAPACITY = 1024;
+    private static final long MERGE_INTERVAL_MILLIS = 10L;
+    // the time stamp differs from the current time more than this is treated as unavailable, such as the other clock based value
+    private static final long MAXIMUM_TIME_STAMP_ERROR_NANOS = 1000000000L;
+    // the packed short message value for the other messages
+    private static final int NOT_SHORT_MESSAGE = -1;
+    private static final Input[] emptyInputs = {};
+    private static final int INITIAL_TEMPO_SEGMENT_CAPACITY = 16;
+
+    /**
+     * Single producer ring buffer of the incoming messages.<br />
+     * Written by the thread of one {@link jp.kshoji.javax.sound.midi.Transmitter}, and read by the merger.
+     *
+     * @author K.Shoji
+     */
+    static final class Input {
+        private final long[] times = new long[INPUT_BUFFER_CAPACITY];
+        // (length << 24) | (data2 << 16) | (data1 << 8) | status, or NOT_SHORT_MESSAGE
+        private final int[] shortMessages = new int[INPUT_BUFFER_CAPACITY];
+        private final MidiMessage[] messages = new MidiMessage[INPUT_BUFFER_CAPACITY];
+        private volatile long writeIndex = 0;
+        private volatile long readIndex = 0;
+
+        /**
+         * Write the message into the buffer, called only from the one thread.<br />
+         * If the buffer is full, waits until the merger reads the buffer.
+         *
+         * @param message the message, may be reused by the caller
+         * @param timeStamp the time stamp in microseconds, based on {@link System#nanoTime()} / 1000. -1 if the time stamp is not available
+         */
+        void write(@NonNull final MidiMessage message, final long timeStamp) {
+            final long now = System.nanoTime();
+            long time = timeStamp > 0 ? timeStamp * 1000L : now;
+            if (Math.abs(time - now) > MAXIMUM_TIME_STAMP_ERROR_NANOS) {
+                // not based on System.nanoTime()
+                time = now;
+            }
+
+            final long index = writeIndex;
+            while (index - readIndex >= INPUT_BUFFER_CAPACITY) {
+                // buffer full
+                Thread.yield();
+            }
+
+            final int position = (int) (index & (INPUT_BUFFER_CAPACITY - 1));
+            times[position] = time;
+            if (message instanceof ShortMessage) {
+                final ShortMessage shortMessage = (ShortMessage) message;
+                shortMessages[position] = (shortMessage.getLength() << 24) | (shortMessage.getData2() << 16) | (shortMessage.getData1() << 8) | shortMessage.getStatus();
+                messages[position] = null;
+            } else {
+                // the transmitter may reuse the message instance
+                shortMessages[position] = NOT_SHORT_MESSAGE;
+                messages[position] = (MidiMessage) message.clone();
+            }
+
+            // publish the record
+            writeIndex = index + 1;
+        }
+    }
+
+    private volatile Input[] inputs = emptyInputs;
+
+    // guarded by this
+    private Track track = null;
+    // the tempo segments in the order of the time: the time, the tick at the time, and the tempo from the time
+    private int tempoSegmentCount = 0;
+    private long[] segmentNanos = new long[INITIAL_TEMPO_SEGMENT_CAPACITY];
+    private double[] segmentTicks = new double[INITIAL_TEMPO_SEGMENT_CAPACITY];
+    private double[] segmentNanosecondsPerTick = new double[INITIAL_TEMPO_SEGMENT_CAPACITY];
+    private float[] segmentTempoFactors = new float[INITIAL_TEMPO_SEGMENT_CAPACITY];
+    @Nullable
+    private Thread mergerThread = null;
+
+    /**
+     * Create the new {@link Input}, for the one {@link jp.kshoji.javax.sound.midi.Transmitter}
+     *
+     * @return the input
+     */
+    @NonNull
+    synchronized Input createInput() {
+        final Input input = new Input();
+        final Input[] newInputs = Arrays.copyOf(inputs, inputs.length + 1);
+        newInputs[inputs.length] = input;
+        inputs = newInputs;
+        return input;
+    }
+
+    /**
+     * Start recording into the track, and start the merger thread
+     *
+     * @param recordingTrack the track to add the recorded events
+     * @param tick the tick at starting
+     * @param nanosecondsPerTick the current tempo
+     * @param tempoFactor the current tempo factor
+     */
+    synchronized void start(@NonNull final Track recordingTrack, final long tick, final double nanosecondsPerTick, final float tempoFactor) {
+        stop();
+
+        // the records written before starting are not recorded
+        for (final Input input : inputs) {
+            skipRecords(input);
+        }
+
+        track = recordingTrack;
+        segmentNanos[0] = System.nanoTime();
+        segmentTicks[0] = tick;
+        segmentNanosecondsPerTick[0] = nanosecondsPerTick;
+        segmentTempoFactors[0] = tempoFactor;
+        tempoSegmentCount = 1;
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MidiRecorder.this) {
+                    while (mergerThread == Thread.currentThread()) {
+                        mergeRecords();
+                        try {
+                            MidiRecorder.this.wait(MERGE_INTERVAL_MILLIS);
+                        } catch (final InterruptedException ignored) {
+                            // ignore exception
+                        }
+                    }
+                }
+            }
+        });
+        thread.setName("MidiRecorder_" + thread.getId());
+        thread.setDaemon(true);
+        mergerThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Notify the tempo change while recording, the records after the time are converted with the new tempo
+     *
+     * @param nanos the time of the change in {@link System#nanoTime()}, such as the time of the tempo change event
+     * @param nanosecondsPerTick the new tempo
+     * @param tempoFactor the new tempo factor
+     */
+    synchronized void changeTempo(final long nanos, final double nanosecondsPerTick, final float tempoFactor) {
+        if (mergerThread == null) {
+            return;
+        }
+
+        // the change before starting is applied from the start
+        final long time = Math.max(nanos, segmentNanos[0]);
+        int index = tempoSegmentCount;
+        while (index > 1 && segmentNanos[index - 1] > time) {
+            index--;
+        }
+
+        if (tempoSegmentCount == segmentNanos.length) {
+            final int capacity = tempoSegmentCount * 2;
+            segmentNanos = Arrays.copyOf(segmentNanos, capacity);
+            segmentTicks = Arrays.copyOf(segmentTicks, capacity);
+            segmentNanosecondsPerTick = Arrays.copyOf(segmentNanosecondsPerTick, capacity);
+            segmentTempoFactors = Arrays.copyOf(segmentTempoFactors, capacity);
+        }
+        final int moveLength = tempoSegmentCount - index;
+        System.arraycopy(segmentNanos, index, segmentNanos, index + 1, moveLength);
+        System.arraycopy(segmentTicks, index, segmentTicks, index + 1, moveLength);
+        System.arraycopy(segmentNanosecondsPerTick, index, segmentNanosecondsPerTick, index + 1, moveLength);
+        System.arraycopy(segmentTempoFactors, index, segmentTempoFactors, index + 1, moveLength);
+        segmentNanos[index] = time;
+        segmentNanosecondsPerTick[index] = nanosecondsPerTick;
+        segmentTempoFactors[index] = tempoFactor;
+        tempoSegmentCount++;
+
+        // the ticks of the segments after the inserted one
+        for (int i = index; i < tempoSegmentCount; i++) {
+            segmentTicks[i] = segmentTicks[i - 1] + (segmentNanos[i] - segmentNanos[i - 1]) * segmentTempoFactors[i - 1] / segmentNanosecondsPerTick[i - 1];
+        }
+    }
+
+    /**
+     * Stop the merger thread, and add the remaining records to the track
+     *
+     * @return the tick at stopping, in the same units as the recorded events. -1 if not recording
+     */
+    synchronized long stop() {
+        if (mergerThread == null) {
+            return -1;
+        }
+
+        final long stopTick = timeToTick(System.nanoTime());
+        mergerThread = null;
+        notifyAll();
+        mergeRecords();
+        track = null;
+        return stopTick;
+    }
+
+    /**
+     * Discard the records not read yet
+     *
+     * @param input the input
+     */
+    private static void skipRecords(@NonNull final Input input) {
+        final long writeIndex = input.writeIndex;
+        for (long index = input.readIndex; index < writeIndex; index++) {
+            input.messages[(int) (index & (INPUT_BUFFER_CAPACITY - 1))] = null;
+        }
+        input.readIndex = writeIndex;
+    }
+
+    /**
+     * Convert the records of all inputs to the {@link MidiEvent}s, and add them to the track
+     */
+    private void mergeRecords() {
+        for (final Input input : inputs) {
+            final long writeIndex = input.writeIndex;
+            for (long index = input.readIndex; index < writeIndex; index++) {
+                final int position = (int) (index & (INPUT_BUFFER_CAPACITY - 1));
+                final MidiMessage message = decodeMessage(input, position);
+                input.messages[position] = null;
+                if (message != null) {
+                    track.add(new MidiEvent(message, timeToTick(input.times[position])));
+                }
+            }
+
+            // release the buffer to the producer
+            input.readIndex = writeIndex;
+        }
+
+        // the older records are not written, their time stamps are replaced with the current time
+        final long oldestRecordNanos = System.nanoTime() - MAXIMUM_TIME_STAMP_ERROR_NANOS * 2;
+        int removeCount = 0;
+        while (removeCount + 1 < tempoSegmentCount && segmentNanos[removeCount + 1] <= oldestRecordNanos) {
+            removeCount++;
+        }
+        if (removeCount > 0) {
+            tempoSegmentCount -= removeCount;
+            System.arraycopy(segmentNanos, removeCount, segmentNanos, 0, tempoSegmentCount);
+            System.arraycopy(segmentTicks, removeCount, segmentTicks, 0, tempoSegmentCount);
+            System.arraycopy(segmentNanosecondsPerTick, removeCount, segmentNanosecondsPerTick, 0, tempoSegmentCount);
+            System.arraycopy(segmentTempoFactors, removeCount, segmentTempoFactors, 0, tempoSegmentCount);
+        }
+    }
+
+    /**
+     * Decode the recorded message
+     *
+     * @param input the input
+     * @param position the position in the ring buffer
+     * @return the message, null if the message is invalid
+     */
+    @Nullable
+    private static MidiMessage decodeMessage(@NonNull final Input input, final int position) {
+        final int packedMessage = input.shortMessages[position];
+        if (packedMessage == NOT_SHORT_MESSAGE) {
+            return input.messages[position];
+        }
+
+        final int length = packedMessage >>> 24;
+        final int status = packedMessage & 0xff;
+        try {
+            if (length == 1) {
+                return new ShortMessage(status);
+            }
+            return new ShortMessage(status, (packedMessage >> 8) & 0xff, (packedMessage >> 16) & 0xff);
+        } catch (final InvalidMidiDataException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * Convert the time of the record to the tick
+     *
+     * @param nanos the time in {@link System#nanoTime()}
+     * @return the tick
+     */
+    private long timeToTick(final long nanos) {
+        // the event before starting is recorded at the start position
+        final long time = Math.max(nanos, segmentNanos[0]);
+        int index = tempoSegmentCount - 1;
+        while (index > 0 && segmentNanos[index] > time) {
+            index--;
+        }
+        return (long) (segmentTicks[index] + (time - segmentNanos[index]) * segmentTempoFactors[index] / segmentNanosecondsPerTick[index]);
+    }
+}
@@ -0,0 +1,285 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+
+/**
+ * Tracker of the playing notes, used by {@link SequencerImpl}.<br />
+ * The playing notes of each channel are held in the 128-bit mask, so the playing notes are found without checking all notes.
+ * The NoteOff messages are created once, and reused on every releasing.<br />
+ * The NoteOff sent in advance may be discarded before the delivery, so the note is released again by {@link #releaseAll(MidiMessage[], int, long)} until the delivery time.
+ *
+ * @author K.Shoji
+ */
+final class NoteTracker {
+    /**
+     * The owner of the note which is not playing
+     */
+    static final int NOT_PLAYING = Integer.MIN_VALUE;
+
+    // All Notes Off control change
+    private static final int CONTROL_ALL_NOTES_OFF = 123;
+
+    /**
+     * Selects the notes to release, by the owner of the note
+     *
+     * @author K.Shoji
+     */
+    interface OwnerFilter {
+        /**
+         * Check if the notes of the owner should be released
+         *
+         * @param owner the owner specified at {@link #noteOn(int, int, int)}
+         * @return true if the notes should be released
+         */
+        boolean accept(int owner);
+    }
+
+    // the playing notes: [channel * 2] note 0-63, [channel * 2 + 1] note 64-127
+    private final long[] noteMasks = new long[32];
+    // the notes whose NoteOff has been sent in advance, and may not be delivered yet
+    private final long[] scheduledOffMasks = new long[32];
+    private boolean hasScheduledOff = false;
+    // the delivery time of the last NoteOff sent in advance
+    private long scheduledOffTime;
+    // the owner of the playing note, indexed by (channel << 7) | note
+    private final int[] owners = new int[16 * 128];
+    // created on demand
+    private final ShortMessage[] noteOffMessages = new ShortMessage[16 * 128];
+    private final ShortMessage[] allNotesOffMessages = new ShortMessage[16];
+
+    /**
+     * Constructor
+     */
+    NoteTracker() {
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = NOT_PLAYING;
+        }
+    }
+
+    /**
+     * Mark the note as playing
+     *
+     * @param channel the channel, 0-15
+     * @param note the note number, 0-127
+     * @param owner the owner of the note, such as the track index
+     */
+    void noteOn(final int channel, final int note, final int owner) {
+        noteMasks[(channel << 1) | (note >>> 6)] |= 1L << note;
+        owners[(channel << 7) | note] = owner;
+    }
+
+    /**
+     * Mark the note as not playing
+     *
+     * @param channel the channel, 0-15
+     * @param note the note number, 0-127
+     */
+    void noteOff(final int channel, final int note) {
+        noteMasks[(channel << 1) | (note >>> 6)] &= ~(1L << note);
+        owners[(channel << 7) | note] = NOT_PLAYING;
+    }
+
+    /**
+     * Mark the note as not playing, with the delivery time of the NoteOff
+     *
+     * @param channel the channel, 0-15
+     * @param note the note number, 0-127
+     * @param deliveryTime the delivery time of the NoteOff in {@link System#nanoTime()}, 0: already delivered
+     */
+    void noteOff(final int channel, final int note, final long deliveryTime) {
+        noteOff(channel, note);
+        if (deliveryTime == 0) {
+            return;
+        }
+
+        scheduledOffMasks[(channel << 1) | (note >>> 6)] |= 1L << note;
+        if (!hasScheduledOff || deliveryTime - scheduledOffTime > 0) {
+            scheduledOffTime = deliveryTime;
+        }
+        hasScheduledOff = true;
+    }
+
+    /**
+     * Forget the NoteOff sent in advance, if all of them have been delivered
+     *
+     * @param now the current time in {@link System#nanoTime()}
+     */
+    void expireScheduledOff(final long now) {
+        if (hasScheduledOff && now - scheduledOffTime >= 0) {
+            clearScheduledOff();
+        }
+    }
+
+    /**
+     * Forget the NoteOff sent in advance
+     */
+    private void clearScheduledOff() {
+        for (int i = 0; i < scheduledOffMasks.length; i++) {
+            scheduledOffMasks[i] = 0;
+        }
+        hasScheduledOff = false;
+    }
+
+    /**
+     * Get the owner of the playing note
+     *
+     * @param channel the channel, 0-15
+     * @param note the note number, 0-127
+     * @return the owner, {@link #NOT_PLAYING} if the note is not playing
+     */
+    int getOwner(final int channel, final int note) {
+        return owners[(channel << 7) | note];
+    }
+
+    /**
+     * Create the messages to release the all playing notes, and mark the notes as not playing.<br />
+     * If the messages are sent immediately, the notes whose NoteOff has been sent in advance are released too,
+     * because the NoteOff may have been discarded before the delivery.
+     *
+     * @param messages the array to store the messages, length must be 2048 or more
+     * @param allNotesOffThreshold if the channel has more playing notes than this, All Notes Off control change is used instead of the NoteOff messages. 0: always NoteOff
+     * @param deliveryTime the delivery time of the messages in {@link System#nanoTime()}, 0: sent immediately
+     * @return the number of the stored messages
+     */
+    int releaseAll(@NonNull final MidiMessage[] messages, final int allNotesOffThreshold, final long deliveryTime) {
+        final boolean releaseScheduledOff = deliveryTime == 0 && hasScheduledOff;
+        int count = 0;
+        for (int channel = 0; channel < 16; channel++) {
+            long lowMask = noteMasks[channel << 1];
+            long highMask = noteMasks[(channel << 1) | 1];
+            if (releaseScheduledOff) {
+                lowMask |= scheduledOffMasks[channel << 1];
+                highMask |= scheduledOffMasks[(channel << 1) | 1];
+            }
+            if ((lowMask | highMask) == 0) {
+                continue;
+            }
+
+            if (allNotesOffThreshold > 0 && Long.bitCount(lowMask) + Long.bitCount(highMask) > allNotesOffThreshold) {
+                final MidiMessage message = getAllNotesOffMessage(channel);
+                if (message != null) {
+                    messages[count++] = message;
+                    clearNotes(channel, lowMask, 0, deliveryTime);
+                    clearNotes(channel, highMask, 64, deliveryTime);
+                    continue;
+                }
+            }
+
+            count = releaseNotes(messages, count, channel, lowMask, 0, null, deliveryTime);
+            count = releaseNotes(messages, count, channel, highMask, 64, null, deliveryTime);
+        }
+
+        if (releaseScheduledOff) {
+            clearScheduledOff();
+        }
+        return count;
+    }
+
+    /**
+     * Create the NoteOff messages to release the playing notes of the owners, and mark the notes as not playing
+     *
+     * @param messages the array to store the messages, length must be 2048 or more
+     * @param filter selects the owners to release
+     * @param deliveryTime the delivery time of the messages in {@link System#nanoTime()}, 0: sent immediately
+     * @return the number of the stored messages
+     */
+    int release(@NonNull final MidiMessage[] messages, @NonNull final OwnerFilter filter, final long deliveryTime) {
+        int count = 0;
+        for (int channel = 0; channel < 16; channel++) {
+            count = releaseNotes(messages, count, channel, noteMasks[channel << 1], 0, filter, deliveryTime);
+            count = releaseNotes(messages, count, channel, noteMasks[(channel << 1) | 1], 64, filter, deliveryTime);
+        }
+        return count;
+    }
+
+    /**
+     * Create the NoteOff messages of the notes in the mask
+     *
+     * @param messages the array to store the messages
+     * @param offset the index to store the first message
+     * @param channel the channel
+     * @param mask the playing notes
+     * @param firstNote the note number of the lowest bit of the mask
+     * @param filter selects the owners to release, null: release all
+     * @param deliveryTime the delivery time of the messages in {@link System#nanoTime()}, 0: sent immediately
+     * @return the index after the last stored message
+     */
+    private int releaseNotes(@NonNull final MidiMessage[] messages, final int offset, final int channel, final long mask, final int firstNote, @Nullable final OwnerFilter filter, final long deliveryTime) {
+        int count = offset;
+        long remaining = mask;
+        while (remaining != 0) {
+            final int note = firstNote + Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+
+            if (filter != null && !filter.accept(owners[(channel << 7) | note])) {
+                continue;
+            }
+
+            final MidiMessage message = getNoteOffMessage(channel, note);
+            if (message != null) {
+                messages[count++] = message;
+            }
+            noteOff(channel, note, deliveryTime);
+        }
+        return count;
+    }
+
+    /**
+     * Mark the notes in the mask as not playing
+     *
+     * @param channel the channel
+     * @param mask the playing notes
+     * @param firstNote the note number of the lowest bit of the mask
+     * @param deliveryTime the delivery time of the release in {@link System#nanoTime()}, 0: sent immediately
+     */
+    private void clearNotes(final int channel, final long mask, final int firstNote, final long deliveryTime) {
+        long remaining = mask;
+        while (remaining != 0) {
+            noteOff(channel, firstNote + Long.numberOfTrailingZeros(remaining), deliveryTime);
+            remaining &= remaining - 1;
+        }
+    }
+
+    /**
+     * Get the NoteOff message of the note
+     *
+     * @param channel the channel
+     * @param note the note number
+     * @return the message, null if failed to create
+     */
+    @Nullable
+    private MidiMessage getNoteOffMessage(final int channel, final int note) {
+        final int index = (channel << 7) | note;
+        if (noteOffMessages[index] == null) {
+            try {
+                noteOffMessages[index] = new ShortMessage(ShortMessage.NOTE_OFF, channel, note, 0);
+            } catch (final InvalidMidiDataException ignored) {
+                // ignore exception
+            }
+        }
+        return noteOffMessages[index];
+    }
+
+    /**
+     * Get the All Notes Off control change message of the channel
+     *
+     * @param channel the channel
+     * @return the message, null if failed to create
+     */
+    @Nullable
+    private MidiMessage getAllNotesOffMessage(final int channel) {
+        if (allNotesOffMessages[channel] == null) {
+            try {
+                allNotesOffMessages[channel] = new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, CONTROL_ALL_NOTES_OFF, 0);
+            } catch (final InvalidMidiDataException ignored) {
+                // ignore exception
+            }
+        }
+        return allNotesOffMessages[channel];
+    }
+}
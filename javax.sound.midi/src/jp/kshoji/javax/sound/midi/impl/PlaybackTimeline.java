@@ -0,0 +1,231 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.javax.sound.midi.MetaMessage;
+import jp.kshoji.javax.sound.midi.MidiEvent;
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.SysexMessage;
+import jp.kshoji.javax.sound.midi.Track;
+
+/**
+ * Immutable playback data compiled from the merged {@link Track}.<br />
+ * Events are stored in parallel primitive arrays, so the sequencer thread can walk them without locking nor allocating.
+ *
+ * @author K.Shoji
+ */
+final class PlaybackTimeline {
+    static final int KIND_SHORT = 0;
+    static final int KIND_SYSEX = 1;
+    static final int KIND_META = 2;
+    static final int KIND_TEMPO = 3;
+
+    private final int size;
+    private final long[] ticks;
+    private final long[] microseconds;
+    private final int[] packedMessages;
+    private final MidiMessage[] messages;
+    private final int[] trackIndices;
+
+    /**
+     * Constructor
+     *
+     * @param size the number of events
+     */
+    private PlaybackTimeline(final int size) {
+        this.size = size;
+        ticks = new long[size];
+        microseconds = new long[size];
+        packedMessages = new int[size];
+        messages = new MidiMessage[size];
+        trackIndices = new int[size];
+    }
+
+    /**
+     * Compile the sorted {@link Track} into the {@link PlaybackTimeline}
+     *
+     * @param track the sorted track
+     * @param trackIndices the source track index of each event, such as the result of {@link jp.kshoji.javax.sound.midi.Track.TrackUtils#mergeTracks(Track[], Track)}
+     * @param tempoMap the tempo map of the sequence, used for the tick to microsecond conversion
+     * @return the compiled timeline
+     */
+    @NonNull
+    static PlaybackTimeline compile(@NonNull final Track track, @NonNull final int[] trackIndices, @NonNull final TempoMap tempoMap) {
+        final int size = track.size();
+        final PlaybackTimeline timeline = new PlaybackTimeline(size);
+
+        for (int i = 0; i < size; i++) {
+            final MidiEvent midiEvent = track.get(i);
+            final MidiMessage midiMessage = midiEvent.getMessage();
+
+            timeline.ticks[i] = midiEvent.getTick();
+            timeline.microseconds[i] = tempoMap.tickToMicrosecond(midiEvent.getTick());
+            timeline.packedMessages[i] = pack(midiMessage);
+            timeline.messages[i] = midiMessage;
+            timeline.trackIndices[i] = i < trackIndices.length ? trackIndices[i] : -1;
+        }
+
+        return timeline;
+    }
+
+    /**
+     * Pack the {@link MidiMessage} into an int value<br />
+     * bit 0-7: status, bit 8-15: data1, bit 16-23: data2, bit 24-31: kind of message.<br />
+     * The tempo message holds the tempo in MPQ at bit 0-23, and other meta messages hold its type at bit 0-7.
+     *
+     * @param midiMessage the message
+     * @return the packed value
+     */
+    static int pack(@NonNull final MidiMessage midiMessage) {
+        if (midiMessage instanceof ShortMessage) {
+            final ShortMessage shortMessage = (ShortMessage) midiMessage;
+            return (KIND_SHORT << 24) | (shortMessage.getData2() << 16) | (shortMessage.getData1() << 8) | shortMessage.getStatus();
+        }
+
+        if (midiMessage instanceof SysexMessage) {
+            return (KIND_SYSEX << 24) | midiMessage.getStatus();
+        }
+
+        if (midiMessage instanceof MetaMessage) {
+            final int tempoInMPQ = TempoMap.getTempoInMPQ(midiMessage);
+            if (tempoInMPQ >= 0) {
+                return (KIND_TEMPO << 24) | (tempoInMPQ & 0xffffff);
+            }
+            return (KIND_META << 24) | ((MetaMessage) midiMessage).getType();
+        }
+
+        return (KIND_SYSEX << 24) | midiMessage.getStatus();
+    }
+
+    /**
+     * Get the kind of the packed message
+     *
+     * @param packedMessage the packed message
+     * @return {@link #KIND_SHORT}, {@link #KIND_SYSEX}, {@link #KIND_META} or {@link #KIND_TEMPO}
+     */
+    static int getKind(final int packedMessage) {
+        return packedMessage >>> 24;
+    }
+
+    /**
+     * Get the status of the packed short message
+     *
+     * @param packedMessage the packed message
+     * @return the status
+     */
+    static int getStatus(final int packedMessage) {
+        return packedMessage & 0xff;
+    }
+
+    /**
+     * Get the first data of the packed short message
+     *
+     * @param packedMessage the packed message
+     * @return the first data
+     */
+    static int getData1(final int packedMessage) {
+        return (packedMessage >>> 8) & 0xff;
+    }
+
+    /**
+     * Get the second data of the packed short message
+     *
+     * @param packedMessage the packed message
+     * @return the second data
+     */
+    static int getData2(final int packedMessage) {
+        return (packedMessage >>> 16) & 0xff;
+    }
+
+    /**
+     * Get the tempo of the packed tempo message
+     *
+     * @param packedMessage the packed message
+     * @return the tempo in MPQ
+     */
+    static int getTempoInMPQ(final int packedMessage) {
+        return packedMessage & 0xffffff;
+    }
+
+    /**
+     * Get the number of events
+     *
+     * @return the number of events
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the tick of the specified event
+     *
+     * @param index the event index
+     * @return the tick
+     */
+    long getTick(final int index) {
+        return ticks[index];
+    }
+
+    /**
+     * Get the time of the specified event, calculated with the tempo changes in the track
+     *
+     * @param index the event index
+     * @return the time in microseconds
+     */
+    long getMicrosecond(final int index) {
+        return microseconds[index];
+    }
+
+    /**
+     * Get the packed message of the specified event
+     *
+     * @param index the event index
+     * @return the packed message
+     * @see #pack(MidiMessage)
+     */
+    int getPackedMessage(final int index) {
+        return packedMessages[index];
+    }
+
+    /**
+     * Get the original message of the specified event
+     *
+     * @param index the event index
+     * @return the message
+     */
+    @NonNull
+    MidiMessage getMessage(final int index) {
+        return messages[index];
+    }
+
+    /**
+     * Get the source track index of the specified event
+     *
+     * @param index the event index
+     * @return the track index, -1 if the event is not from the sequence's track
+     */
+    int getTrackIndex(final int index) {
+        return trackIndices[index];
+    }
+
+    /**
+     * Find the first event index at or after the specified tick
+     *
+     * @param tick the tick
+     * @return the event index, {@link #size()} if not found
+     */
+    int indexOfTick(final long tick) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (ticks[middle] < tick) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
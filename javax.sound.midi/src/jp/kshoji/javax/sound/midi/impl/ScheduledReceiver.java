@@ -0,0 +1,28 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.Receiver;
+
+/**
+ * {@link Receiver} which can deliver the messages at the specified future time.<br />
+ * The {@link SequencerImpl} with the lookahead sends the upcoming events to this receiver in advance.
+ *
+ * @author K.Shoji
+ */
+public interface ScheduledReceiver extends Receiver {
+
+    /**
+     * Send the message, to be delivered at the specified time
+     *
+     * @param message the message
+     * @param deliveryTime the delivery time in microseconds, based on {@link System#nanoTime()} / 1000
+     */
+    void sendScheduled(@NonNull MidiMessage message, long deliveryTime);
+
+    /**
+     * Discard the messages not delivered yet
+     */
+    void discardScheduled();
+}
@@ -2,20 +2,23 @@ package jp.kshoji.javax.sound.midi.impl;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import jp.kshoji.javax.sound.midi.ControllerEventListener;
 import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
@@ -29,7 +32,6 @@ import jp.kshoji.javax.sound.midi.Receiver;
 import jp.kshoji.javax.sound.midi.Sequence;
 import jp.kshoji.javax.sound.midi.Sequencer;
 import jp.kshoji.javax.sound.midi.ShortMessage;
-import jp.kshoji.javax.sound.midi.SysexMessage;
 import jp.kshoji.javax.sound.midi.Track;
 import jp.kshoji.javax.sound.midi.Track.TrackUtils;
 import jp.kshoji.javax.sound.midi.Transmitter;
@@ -44,10 +46,47 @@ public class SequencerImpl implements Sequencer {
     private static final SyncMode[] MASTER_SYNC_MODES = new SyncMode[]{SyncMode.INTERNAL_CLOCK};
     private static final SyncMode[] SLAVE_SYNC_MODES = new SyncMode[]{SyncMode.NO_SYNC};
 
+    /**
+     * The default length of the busy wait before the event, used with the high resolution timing
+     */
+    public static final long DEFAULT_SPIN_WAIT_NANOS = 1000000L;
+
+    /**
+     * The events later than this are not caught up, the timing base will be reset.
+     */
+    private static final long MAXIMUM_CATCH_UP_NANOS = 100000000L;
+    // with the lookahead, the sequencer thread sleeps at least the lookahead / this value
+    private static final long LOOKAHEAD_WAKE_DIVISOR = 4;
+    // no seek has been requested
+    private static final long NO_SEEK = Long.MIN_VALUE;
+
+    private static final Receiver[] emptyReceivers = {};
+    private static final MetaEventListener[] emptyMetaEventListeners = {};
+
+
     private final List<Transmitter> transmitters = new ArrayList<Transmitter>();
-    private final List<Receiver> receivers = new ArrayList<Receiver>();
+    // copy-on-write snapshots of the receivers, the sequencer thread reads them without locking
+    private final Object receiversLock = new Object();
+    private volatile Receiver[] receivers = emptyReceivers;
+    // the receivers to send the messages, wrapped with AsyncReceiver if asynchronousReceivers is enabled
+    private volatile Receiver[] outputReceivers = emptyReceivers;
+    private volatile boolean asynchronousReceivers = false;
+    // 0: always release the notes with NoteOff
+    private volatile int allNotesOffThreshold = 0;
     private final Set<MetaEventListener> metaEventListeners = new HashSet<MetaEventListener>();
-    private final SparseArray<Set<ControllerEventListener>> controllerEventListenerMap = new SparseArray<Set<ControllerEventListener>>();
+    // copy-on-write snapshot of the listeners, read without locking
+    private volatile MetaEventListener[] metaEventListenerArray = emptyMetaEventListeners;
+    // the immutable listener arrays indexed by the controller number, replaced with locking controllerEventListeners
+    private final AtomicReferenceArray<ControllerEventListener[]> controllerEventListeners = new AtomicReferenceArray<ControllerEventListener[]>(128);
+    // the bit is set if the controller has the listeners: controller 0-63, 64-127
+    private volatile long controllerEventListenerMaskLow = 0;
+    private volatile long controllerEventListenerMaskHigh = 0;
+    private final EventListenerDispatcher eventListenerDispatcher = new EventListenerDispatcher(new EventListenerDispatcher.Callback() {
+        @Override
+        public void dispatch(@NonNull final MidiMessage message) {
+            callEventListeners(message);
+        }
+    });
     private final Map<Track, Set<Integer>> recordEnable = new HashMap<Track, Set<Integer>>();
     @Nullable
     private SequencerThread sequencerThread = null;
@@ -62,11 +101,20 @@ public class SequencerImpl implements Sequencer {
     private SyncMode slaveSyncMode = SyncMode.NO_SYNC;
     private final SparseBooleanArray trackMute = new SparseBooleanArray();
     private final SparseBooleanArray trackSolo = new SparseBooleanArray();
+    // the bit is set if the track is not muted by the track mute and solo, read by the sequencer thread without locking
+    private volatile long[] playableTrackMask = new long[0];
     private float tempoInBPM = 120.0f;
+    @Nullable
+    private volatile TempoMap tempoMap = null;
 
     private volatile boolean isRunning = false;
     private volatile boolean isRecording = false;
 
+    private volatile boolean highResolutionTiming = false;
+    private volatile long spinWaitNanos = DEFAULT_SPIN_WAIT_NANOS;
+    private volatile long lookaheadMicroseconds = 0;
+    private final LatenessStatistics latenessStatistics = new LatenessStatistics();
+
     private static HashSet<SequencerImpl> sequencers = new HashSet<>();
 
     /**
@@ -75,19 +123,48 @@ public class SequencerImpl implements Sequencer {
      * @author K.Shoji
      */
     private class SequencerThread extends Thread {
-        private long tickPosition = 0;
-        private boolean[][] playingNotes;
+        private volatile long tickPosition = 0;
+        // the owner of the playing note is the source track index.
+        // guarded by playingNotes: released from the caller thread on stopping, and updated by the sequencer thread
+        private final NoteTracker playingNotes = new NoteTracker();
+        // the buffer of the releasing messages, sent in one batch. guarded by playingNotes
+        private final MidiMessage[] releasingMessages = new MidiMessage[16 * 128];
+        private final NoteTracker.OwnerFilter mutedTrackFilter = new NoteTracker.OwnerFilter() {
+            @Override
+            public boolean accept(final int owner) {
+                return !isTrackPlayable(owner);
+            }
+        };
 
         // recording
-        private long recordingStartedTime;
         private long recordStartedTick;
         private Track recordingTrack;
+        private final MidiRecorder midiRecorder = new MidiRecorder();
 
         // playing
-        private Track playingTrack = null;
-        private long tickPositionSetTime;
-        private long runningStoppedTime;
-        private boolean needRefreshPlayingTrack = false;
+        private PlaybackTimeline playbackTimeline = null;
+        // timing in System.nanoTime()
+        private volatile long tickPositionSetTime;
+        private volatile long runningStoppedTime;
+        private volatile boolean needRefreshPlayingTrack = false;
+        private volatile boolean needReleaseMutedNotes = false;
+
+        // seeking: the tick requested by the other threads, consumed by the sequencer thread. NO_SEEK if not requested
+        private final AtomicLong pendingSeekTick = new AtomicLong(NO_SEEK);
+        @Nullable
+        private ChaseIndex chaseIndex = null;
+        private final ChaseIndex.ChaseState chaseState = new ChaseIndex.ChaseState();
+        private final Receiver receiversProxy = new Receiver() {
+            @Override
+            public void send(@NonNull final MidiMessage message, final long timeStamp) {
+                sendToReceivers(message);
+            }
+
+            @Override
+            public void close() {
+                // do nothing
+            }
+        };
 
         /**
          * Constructor
@@ -99,12 +176,18 @@ public class SequencerImpl implements Sequencer {
          * Get current tick position
          */
         private long getTickPosition() {
+            final long seekTick = pendingSeekTick.get();
+            if (seekTick != NO_SEEK) {
+                // not sought yet
+                return seekTick;
+            }
+
             if (isRunning) {
                 // running
-                return (long) (tickPosition + ((System.currentTimeMillis() - tickPositionSetTime) * 1000.0f * getTicksPerMicrosecond()));
+                return tickPosition + (long) ((System.nanoTime() - tickPositionSetTime) * getTempoFactor() / getNanosecondsPerTick());
             } else {
                 // stopping
-                return (long) (tickPosition + ((runningStoppedTime - tickPositionSetTime) * 1000.0f * getTicksPerMicrosecond()));
+                return tickPosition + (long) ((runningStoppedTime - tickPositionSetTime) * getTempoFactor() / getNanosecondsPerTick());
             }
         }
 
@@ -114,9 +197,12 @@ public class SequencerImpl implements Sequencer {
          * @param tick current tick position
          */
         private void setTickPosition(final long tick) {
-            tickPosition = tick;
-            if (isRunning) {
-                tickPositionSetTime = System.currentTimeMillis();
+            // the position is set by the sequencer thread on seeking
+            pendingSeekTick.set(tick);
+
+            // wake up to seek
+            synchronized (this) {
+                notifyAll();
             }
         }
 
@@ -131,8 +217,8 @@ public class SequencerImpl implements Sequencer {
 
             recordingTrack = sequence.createTrack();
             recordEnable(recordingTrack, -1);
-            recordingStartedTime = System.currentTimeMillis();
             recordStartedTick = getTickPosition();
+            midiRecorder.start(recordingTrack, recordStartedTick, getNanosecondsPerTick(), getTempoFactor());
             isRecording = true;
         }
 
@@ -145,40 +231,42 @@ public class SequencerImpl implements Sequencer {
                 return;
             }
 
-            final long recordEndedTime = System.currentTimeMillis();
             isRecording = false;
+            // add the remaining recorded events, the recorded range is measured by the same clock as the events
+            final long recordEndedTick = Math.max(recordStartedTick, midiRecorder.stop());
 
-            final Collection<MidiEvent> eventToRemoval = new HashSet<MidiEvent>();
+            final List<MidiEvent> recordedEvents = new ArrayList<MidiEvent>(recordingTrack.size());
+            for (int eventIndex = 0; eventIndex < recordingTrack.size(); eventIndex++) {
+                recordedEvents.add(recordingTrack.get(eventIndex));
+            }
+
+            final List<MidiEvent> trackRecordedEvents = new ArrayList<MidiEvent>(recordedEvents.size());
             for (final Track track : sequence.getTracks()) {
                 if (track == recordingTrack) {
                     continue;
                 }
 
                 final Set<Integer> recordEnableChannels = recordEnable.get(track);
-
-                // remove events while recorded time
-                eventToRemoval.clear();
-                for (int trackIndex = 0; trackIndex < track.size(); trackIndex++) {
-                    final MidiEvent midiEvent = track.get(trackIndex);
-                    if (isRecordable(recordEnableChannels, midiEvent) && //
-                            midiEvent.getTick() >= recordingStartedTime && midiEvent.getTick() <= recordEndedTime) { // recorded time
-                        eventToRemoval.add(midiEvent);
-                    }
-                }
-
-                for (final MidiEvent event : eventToRemoval) {
-                    track.remove(event);
+                if (recordEnableChannels == null) {
+                    // not recordable
+                    continue;
                 }
 
                 // add recorded events
-                for (int eventIndex = 0; eventIndex < recordingTrack.size(); eventIndex++) {
-                    MidiEvent midiEvent = recordingTrack.get(eventIndex);
+                trackRecordedEvents.clear();
+                for (final MidiEvent midiEvent : recordedEvents) {
                     if (isRecordable(recordEnableChannels, midiEvent)) {
-                        track.add(midiEvent);
+                        trackRecordedEvents.add(midiEvent);
                     }
                 }
 
-                TrackUtils.sortEvents(track);
+                // replace the events while recorded time
+                TrackUtils.replaceEvents(track, recordStartedTick, recordEndedTick, new TrackUtils.EventFilter() {
+                    @Override
+                    public boolean accept(@NonNull final MidiEvent event) {
+                        return isRecordable(recordEnableChannels, event);
+                    }
+                }, trackRecordedEvents);
             }
 
             // refresh playingTrack
@@ -194,7 +282,7 @@ public class SequencerImpl implements Sequencer {
                 return;
             }
 
-            tickPositionSetTime = System.currentTimeMillis();
+            tickPositionSetTime = System.nanoTime();
             isRunning = true;
 
             synchronized (this) {
@@ -215,8 +303,12 @@ public class SequencerImpl implements Sequencer {
                 return;
             }
 
+            // keep the position while stopping
+            final long stoppedTickPosition = getTickPosition();
             isRunning = false;
-            runningStoppedTime = System.currentTimeMillis();
+            runningStoppedTime = System.nanoTime();
+            tickPosition = stoppedTickPosition;
+            tickPositionSetTime = runningStoppedTime;
 
             // force stop sleeping
             synchronized (this) {
@@ -224,70 +316,156 @@ public class SequencerImpl implements Sequencer {
             }
             interrupt();
 
-            stopAllPlayingNotes();
-        }
-
-        private void stopAllPlayingNotes()
-        {
-            ShortMessage midiMessage = new ShortMessage();
-            for (int channel = 0; channel < 16; channel++)
-            {
-                for (int note = 0; note < 128; note++)
-                {
-                    // send NoteOff event to playing notes
-                    if (playingNotes[channel][note])
-                    {
-                        try {
-                            midiMessage.setMessage(ShortMessage.NOTE_OFF | channel, note, 0);
-
-                            synchronized (receivers)
-                            {
-                                for (Receiver receiver : receivers)
-                                {
-                                    receiver.send(midiMessage, 0);
-                                }
-                            }
+            discardScheduledMessages();
+            stopAllPlayingNotes(0);
+            flushReceivers();
+        }
 
-                            playingNotes[channel][note] = false;
-                        } catch (InvalidMidiDataException ignored) {
-                        }
+        /**
+         * Send NoteOff events to the playing notes
+         *
+         * @param deliveryTime the delivery time in {@link System#nanoTime()}, 0: send immediately
+         */
+        private void stopAllPlayingNotes(final long deliveryTime) {
+            synchronized (playingNotes) {
+                playingNotes.expireScheduledOff(System.nanoTime());
+                // the buffer is not overwritten until sent
+                sendToReceivers(releasingMessages, playingNotes.releaseAll(releasingMessages, allNotesOffThreshold, deliveryTime), deliveryTime);
+            }
+        }
+
+        /**
+         * Send NoteOff events to the playing notes of the muted tracks
+         *
+         * @param deliveryTime the delivery time in {@link System#nanoTime()}, 0: send immediately
+         */
+        private void releaseMutedNotes(final long deliveryTime) {
+            synchronized (playingNotes) {
+                sendToReceivers(releasingMessages, playingNotes.release(releasingMessages, mutedTrackFilter, deliveryTime), deliveryTime);
+            }
+        }
+
+        /**
+         * Send the specified {@link MidiMessage} to the all receivers.
+         *
+         * @param message the {@link MidiMessage}
+         */
+        private void sendToReceivers(@NonNull final MidiMessage message) {
+            sendToReceivers(message, 0);
+        }
+
+        /**
+         * Send the specified {@link MidiMessage} to the all receivers.<br />
+         * The {@link ScheduledReceiver}s deliver the message at the specified time, and the others receive it immediately.
+         *
+         * @param message the {@link MidiMessage}
+         * @param deliveryTime the delivery time in {@link System#nanoTime()}, 0: send immediately
+         */
+        private void sendToReceivers(@NonNull final MidiMessage message, final long deliveryTime) {
+            for (final Receiver receiver : outputReceivers) {
+                if (deliveryTime != 0 && receiver instanceof ScheduledReceiver) {
+                    ((ScheduledReceiver) receiver).sendScheduled(message, deliveryTime / 1000L);
+                } else {
+                    receiver.send(message, 0);
+                }
+            }
+        }
+
+        /**
+         * Send the specified {@link MidiMessage}s to the all receivers, in one batch for each receiver.
+         *
+         * @param messages the {@link MidiMessage}s
+         * @param count the number of the messages to send
+         * @param deliveryTime the delivery time in {@link System#nanoTime()}, 0: send immediately
+         */
+        private void sendToReceivers(@NonNull final MidiMessage[] messages, final int count, final long deliveryTime) {
+            if (count == 0) {
+                return;
+            }
+
+            for (final Receiver receiver : outputReceivers) {
+                if (deliveryTime != 0 && receiver instanceof ScheduledReceiver) {
+                    for (int i = 0; i < count; i++) {
+                        ((ScheduledReceiver) receiver).sendScheduled(messages[i], deliveryTime / 1000L);
+                    }
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        receiver.send(messages[i], 0);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write out the messages buffered in the receivers
+         */
+        private void flushReceivers() {
+            for (final Receiver receiver : outputReceivers) {
+                if (receiver instanceof Flushable) {
+                    try {
+                        ((Flushable) receiver).flush();
+                    } catch (final IOException ignored) {
                     }
                 }
             }
         }
 
+        /**
+         * Discard the messages sent in advance, and not delivered yet
+         */
+        private void discardScheduledMessages() {
+            for (final Receiver receiver : outputReceivers) {
+                if (receiver instanceof ScheduledReceiver) {
+                    ((ScheduledReceiver) receiver).discardScheduled();
+                }
+            }
+        }
+
         /**
          * Process the specified {@link MidiMessage} and fire events to registered event listeners.
          *
          * @param message the {@link MidiMessage}
          */
         private void fireEventListeners(@NonNull final MidiMessage message) {
-            if (message instanceof MetaMessage) {
-                synchronized (metaEventListeners) {
-                    try {
-                        for (final MetaEventListener metaEventListener : metaEventListeners) {
-                            metaEventListener.meta((MetaMessage) message);
-                        }
-                    } catch (final ConcurrentModificationException ignored) {
-                        // FIXME why this exception will be thrown? ... ignore it.
-                    }
-                }
-            } else if (message instanceof ShortMessage) {
-                final ShortMessage shortMessage = (ShortMessage) message;
-                if (shortMessage.getCommand() == ShortMessage.CONTROL_CHANGE) {
-                    synchronized (controllerEventListenerMap) {
-                        try {
-                            final Set<ControllerEventListener> eventListeners = controllerEventListenerMap.get(shortMessage.getData1());
-                            if (eventListeners != null) {
-                                for (final ControllerEventListener eventListener : eventListeners) {
-                                    eventListener.controlChange(shortMessage);
-                                }
-                            }
-                        } catch (final ConcurrentModificationException ignored) {
-                            // ignore exception
-                        }
+            if (hasEventListeners(PlaybackTimeline.pack(message))) {
+                // the transmitter may reuse the message instance
+                eventListenerDispatcher.post((MidiMessage) message.clone());
+            }
+        }
+
+        /**
+         * Process the specified {@link MidiMessage} and fire events to registered event listeners.<br />
+         * The listeners are called asynchronously, so the sequencer thread is not delayed by the listeners.
+         *
+         * @param packedMessage the packed message, see {@link PlaybackTimeline#pack(MidiMessage)}
+         * @param message the {@link MidiMessage}, not modified after calling
+         */
+        private void fireEventListeners(final int packedMessage, @NonNull final MidiMessage message) {
+            if (hasEventListeners(packedMessage)) {
+                eventListenerDispatcher.post(message);
+            }
+        }
+
+        /**
+         * Check if the listeners for the message are registered
+         *
+         * @param packedMessage the packed message, see {@link PlaybackTimeline#pack(MidiMessage)}
+         * @return true if the listeners are registered
+         */
+        private boolean hasEventListeners(final int packedMessage) {
+            switch (PlaybackTimeline.getKind(packedMessage)) {
+                case PlaybackTimeline.KIND_META:
+                case PlaybackTimeline.KIND_TEMPO:
+                    return metaEventListenerArray.length > 0;
+
+                case PlaybackTimeline.KIND_SHORT:
+                    if ((PlaybackTimeline.getStatus(packedMessage) & ShortMessage.MASK_EVENT) == ShortMessage.CONTROL_CHANGE) {
+                        return hasControllerEventListeners(PlaybackTimeline.getData1(packedMessage) & 0x7f);
                     }
-                }
+                    return false;
+
+                default:
+                    return false;
             }
         }
 
@@ -298,33 +476,28 @@ public class SequencerImpl implements Sequencer {
             refreshPlayingTrack();
 
             // recording
-            final Receiver midiEventRecordingReceiver = new Receiver() {
-                @Override
-                public void send(@NonNull final MidiMessage message, final long timeStamp) {
-                    if (isRecording) {
-                        recordingTrack.add(new MidiEvent(message, (long) (recordStartedTick + ((System.currentTimeMillis() - recordingStartedTime) * 1000.0f * getTicksPerMicrosecond()))));
-                    }
-
-                    fireEventListeners(message);
-                }
-
-                @Override
-                public void close() {
-                    // do nothing
-                }
-            };
-
             synchronized (transmitters) {
                 for (final Transmitter transmitter : transmitters) {
-                    // receive from all transmitters
-                    transmitter.setReceiver(midiEventRecordingReceiver);
+                    // receive from all transmitters, each transmitter has its own recording buffer
+                    final MidiRecorder.Input recordingInput = midiRecorder.createInput();
+                    transmitter.setReceiver(new Receiver() {
+                        @Override
+                        public void send(@NonNull final MidiMessage message, final long timeStamp) {
+                            if (isRecording) {
+                                recordingInput.write(message, timeStamp);
+                            }
+
+                            fireEventListeners(message);
+                        }
+
+                        @Override
+                        public void close() {
+                            // do nothing
+                        }
+                    });
                 }
             }
 
-            playingNotes = new boolean[16][];
-            for (int i = 0; i < 16; i++) {
-                playingNotes[i] = new boolean[128];
-            }
 
             // playing
             while (isOpen) {
@@ -339,12 +512,12 @@ public class SequencerImpl implements Sequencer {
                     }
                 }
 
-                if (playingTrack == null) {
-                    if (needRefreshPlayingTrack) {
-                        refreshPlayingTrack();
-                    }
+                if (playbackTimeline == null || needRefreshPlayingTrack) {
+                    refreshPlayingTrack();
 
-                    if (playingTrack == null) {
+                    if (playbackTimeline == null) {
+                        // nothing to play
+                        isRunning = false;
                         continue;
                     }
                 }
@@ -352,95 +525,83 @@ public class SequencerImpl implements Sequencer {
                 // process looping
                 boolean isFirstLoop = true;
                 final int loopCount = getLoopCount() == LOOP_CONTINUOUSLY ? 1 : getLoopCount() + 1;
-                for (int loop = 0; loop < loopCount; loop += getLoopCount() == LOOP_CONTINUOUSLY ? 0 : 1) {
-                    if (needRefreshPlayingTrack) {
-                        refreshPlayingTrack();
+                for (int loop = 0; loop < loopCount && isRunning && isOpen; loop += getLoopCount() == LOOP_CONTINUOUSLY ? 0 : 1) {
+                    int i;
+                    if (isFirstLoop) {
+                        // start from the current position
+                        i = 0;
+                        // keep the position requested while stopping
+                        pendingSeekTick.compareAndSet(NO_SEEK, tickPosition);
+                    } else {
+                        // start from the loop start point
+                        i = playbackTimeline.indexOfTick(getLoopStartPoint());
+                        tickPosition = getLoopStartPoint();
+                        if (lookaheadMicroseconds <= 0) {
+                            tickPositionSetTime = System.nanoTime();
+                        }
+                        // with the lookahead, the loop starts at the scheduled loop end time
                     }
 
-                    for (int i = 0; i < playingTrack.size(); i++) {
-                        final MidiEvent midiEvent = playingTrack.get(i);
-                        final MidiMessage midiMessage = midiEvent.getMessage();
-
-                        if (needRefreshPlayingTrack) {
-                            // skip to lastTick
-                            if (midiEvent.getTick() < tickPosition) {
-                                if (midiMessage instanceof MetaMessage) {
-                                    // process tempo change message
-                                    final MetaMessage metaMessage = (MetaMessage) midiMessage;
-                                    if (processTempoChange(metaMessage) == false) {
-                                        // not tempo message, process the event
-                                        synchronized (receivers) {
-                                            for (final Receiver receiver : receivers) {
-                                                receiver.send(midiMessage, 0);
-                                            }
-                                        }
-                                    }
-                                } else if (midiMessage instanceof SysexMessage) {
-                                    // process system messages
-                                    synchronized (receivers) {
-                                        for (final Receiver receiver : receivers) {
-                                            receiver.send(midiMessage, 0);
-                                        }
-                                    }
-                                } else if (midiMessage instanceof ShortMessage) {
-                                    // process control change / program change messages
-                                    final ShortMessage shortMessage = (ShortMessage) midiMessage;
-                                    switch (shortMessage.getCommand()) {
-                                        case ShortMessage.NOTE_ON:
-                                        case ShortMessage.NOTE_OFF:
-                                            break;
-                                        default:
-                                            synchronized (receivers) {
-                                                for (final Receiver receiver : receivers) {
-                                                    receiver.send(midiMessage, 0);
-                                                }
-                                            }
-                                            break;
-                                    }
-                                }
-
-                                continue;
-                            } else {
-                                // refresh playingTrack completed
-                                needRefreshPlayingTrack = false;
+                    while (i < playbackTimeline.size() && isOpen) {
+                        if (needRefreshPlayingTrack || pendingSeekTick.get() != NO_SEEK) {
+                            if (needRefreshPlayingTrack) {
+                                refreshPlayingTrack();
                             }
+                            final long seekTick = pendingSeekTick.getAndSet(NO_SEEK);
+                            i = chaseTo(seekTick != NO_SEEK ? seekTick : tickPosition);
+                            continue;
+                        }
+                        if (needReleaseMutedNotes) {
+                            // the track mute or solo has been changed
+                            needReleaseMutedNotes = false;
+                            // with the lookahead, release after the events already sent in advance
+                            releaseMutedNotes(lookaheadMicroseconds > 0 ? tickPositionSetTime : 0);
                         }
 
-                        // don't skip if GetPlayBeforeLoopOnce() && loop == 0
-                        if (((getPlayIntroOnFirstLoop() && !isFirstLoop) || !getPlayIntroOnFirstLoop()) && midiEvent.getTick() < getLoopStartPoint() ||
-                                (getLoopEndPoint() != -1 && midiEvent.getTick() > getLoopEndPoint())) {
-                            if (tickPosition <= getLoopEndPoint() && midiEvent.getTick() > getLoopEndPoint()) {
-                                // reached loop end
-                                stopAllPlayingNotes();
-                            }
+                        final long eventTick = playbackTimeline.getTick(i);
+                        final int packedMessage = playbackTimeline.getPackedMessage(i);
+                        final MidiMessage midiMessage = playbackTimeline.getMessage(i);
+                        final int trackIndex = playbackTimeline.getTrackIndex(i);
 
+                        // don't skip if GetPlayBeforeLoopOnce() && loop == 0
+                        if (!(getPlayIntroOnFirstLoop() && isFirstLoop) && eventTick < getLoopStartPoint()) {
                             // outer loop
-                            tickPosition = midiEvent.getTick();
-                            tickPositionSetTime = System.currentTimeMillis();
-                            isFirstLoop = false;
+                            tickPosition = eventTick;
+                            tickPositionSetTime = System.nanoTime();
+                            i++;
                             continue;
                         }
-
-                        long eventFireTime = System.currentTimeMillis();
-                        synchronized (this) {
-                            try {
-                                long sleepLength = (long) ((1.0f / getTicksPerMicrosecond()) * (midiEvent.getTick() - tickPosition) / 1000f / getTempoFactor());
-                                sleepLength -= eventFireTime - tickPositionSetTime;
-                                eventFireTime += sleepLength;
-                                if (sleepLength > 0) {
-                                    wait(sleepLength);
-                                }
-                            } catch (final InterruptedException ignored) {
-                                // ignore exception
+                        if (getLoopEndPoint() != -1 && eventTick > getLoopEndPoint()) {
+                            // reached loop end
+                            if (lookaheadMicroseconds > 0) {
+                                // the events before the loop end may not be delivered yet
+                                final long loopEndTime = getEventTime(getLoopEndPoint());
+                                stopAllPlayingNotes(loopEndTime);
+                                tickPosition = getLoopEndPoint();
+                                tickPositionSetTime = loopEndTime;
+                            } else {
+                                stopAllPlayingNotes(0);
+                                tickPosition = getLoopEndPoint();
+                                tickPositionSetTime = System.nanoTime();
                             }
+                            break;
                         }
 
-                        tickPosition = midiEvent.getTick();
-                        tickPositionSetTime = eventFireTime;
+                        // the deadline is calculated from the timing base, so the lateness won't be accumulated
+                        final long eventFireTime = getEventTime(eventTick);
+                        // with the lookahead, the event is sent in advance
+                        final long lookaheadNanos = lookaheadMicroseconds * 1000L;
+                        final long sendTime = eventFireTime - lookaheadNanos;
+                        final long currentTime = System.nanoTime();
+                        if (lookaheadNanos > 0 && sendTime - currentTime > 0) {
+                            // wake once per window: sleep for a part of the window at least, and then send all events in the window at once
+                            waitUntil(Math.max(sendTime, currentTime + lookaheadNanos / LOOKAHEAD_WAKE_DIVISOR));
+                        } else {
+                            waitUntil(sendTime);
+                        }
 
                         // pause / resume
-                        while (!isRunning && isOpen) {
-                            boolean pausing = !isRunning;
+                        if (!isRunning) {
                             synchronized (this) {
                                 try {
                                     // wait for being notified
@@ -451,109 +612,214 @@ public class SequencerImpl implements Sequencer {
                                     // ignore exception
                                 }
                             }
-                            if (!pausing) {
-                                continue;
-                            }
 
-                            if (needRefreshPlayingTrack) {
-                                refreshPlayingTrack();
-                            }
-                            for (int index = 0; index < playingTrack.size(); index++) {
-                                if (playingTrack.get(index).getTick() >= tickPosition) {
-                                    i = index;
-                                    break;
-                                }
+                            if (lookaheadNanos > 0) {
+                                // the events sent in advance have been discarded
+                                i = playbackTimeline.indexOfTick(tickPosition);
                             }
 
-                            if (needRefreshPlayingTrack) {
-                                // `i` will increment after reaching continue
-                                i--;
-                            }
+                            // process the event again, from the resumed position
+                            continue;
                         }
 
-                        if (!isOpen) {
-                            break;
+                        final long now = System.nanoTime();
+                        if (needRefreshPlayingTrack || pendingSeekTick.get() != NO_SEEK || needReleaseMutedNotes || sendTime - now > 0) {
+                            // seek or mute requested, or woken up too early
+                            continue;
                         }
 
-                        if (needRefreshPlayingTrack) {
-                            continue;
+                        latenessStatistics.record(now - eventFireTime);
+                        tickPosition = eventTick;
+                        if (now - eventFireTime > MAXIMUM_CATCH_UP_NANOS) {
+                            // too late to catch up: reset the timing base
+                            tickPositionSetTime = now;
+                        } else {
+                            tickPositionSetTime = eventFireTime;
                         }
+                        i++;
 
                         // process tempo change message
-                        if (midiMessage instanceof MetaMessage) {
-                            final MetaMessage metaMessage = (MetaMessage) midiMessage;
-                            if (processTempoChange(metaMessage)) {
-                                fireEventListeners(midiMessage);
+                        if (PlaybackTimeline.getKind(packedMessage) == PlaybackTimeline.KIND_TEMPO) {
+                            tempoInBPM = 60000000.0f / PlaybackTimeline.getTempoInMPQ(packedMessage);
+                            // the recorder follows the tempo from the time of the event
+                            midiRecorder.changeTempo(tickPositionSetTime, getNanosecondsPerTick(), getTempoFactor());
+                            fireEventListeners(packedMessage, midiMessage);
 
-                                // do not send tempo message to the receivers.
-                                continue;
-                            }
+                            // do not send tempo message to the receivers.
+                            continue;
                         }
 
-                        // send MIDI events
-                        synchronized (receivers) {
-                            for (final Receiver receiver : receivers) {
-                                receiver.send(midiMessage, 0);
-                            }
+                        // the meta messages are not muted, same as the tempo changes
+                        final int kind = PlaybackTimeline.getKind(packedMessage);
+                        if (kind != PlaybackTimeline.KIND_META && !isTrackPlayable(trackIndex) && !isReleasingNote(packedMessage, trackIndex)) {
+                            // muted track
+                            continue;
                         }
 
-                        fireEventListeners(midiMessage);
+                        // send MIDI events
+                        final long deliveryTime = lookaheadNanos > 0 ? tickPositionSetTime : 0;
+                        sendToReceivers(midiMessage, deliveryTime);
+
+                        fireEventListeners(packedMessage, midiMessage);
 
                         // store playing note status
-                        if (midiMessage instanceof ShortMessage) {
-                            ShortMessage noteMessage = (ShortMessage) midiMessage;
-                            if (noteMessage.getCommand() == ShortMessage.NOTE_ON) {
-                                playingNotes[noteMessage.getChannel()][noteMessage.getData1()] = noteMessage.getData2() > 0;
-                            } else if (noteMessage.getCommand() == ShortMessage.NOTE_OFF) {
-                                playingNotes[noteMessage.getChannel()][noteMessage.getData1()] = false;
+                        if (kind == PlaybackTimeline.KIND_SHORT) {
+                            final int status = PlaybackTimeline.getStatus(packedMessage);
+                            if ((status & ShortMessage.MASK_EVENT) == ShortMessage.NOTE_ON && PlaybackTimeline.getData2(packedMessage) > 0) {
+                                synchronized (playingNotes) {
+                                    playingNotes.noteOn(status & ShortMessage.MASK_CHANNEL, PlaybackTimeline.getData1(packedMessage), trackIndex);
+                                }
+                            } else if ((status & ShortMessage.MASK_EVENT) == ShortMessage.NOTE_ON || (status & ShortMessage.MASK_EVENT) == ShortMessage.NOTE_OFF) {
+                                synchronized (playingNotes) {
+                                    // the NoteOff sent in advance may be discarded by stopping or seeking before the delivery
+                                    playingNotes.noteOff(status & ShortMessage.MASK_CHANNEL, PlaybackTimeline.getData1(packedMessage), deliveryTime);
+                                }
                             }
                         }
                     }
+
+                    isFirstLoop = false;
                 }
 
                 // loop end
-                isRunning = false;
-                runningStoppedTime = System.currentTimeMillis();
+                flushReceivers();
+                if (isRunning) {
+                    isRunning = false;
+                    runningStoppedTime = System.nanoTime();
+                    tickPositionSetTime = runningStoppedTime;
+                }
             }
         }
 
         /**
-         * Process the tempo change events
+         * Get the time of the event, calculated from the current timing base and tempo
          *
-         * @param metaMessage the {@link MetaMessage}
-         * @return true if the tempo changed
+         * @param tick the tick of the event
+         * @return the time in {@link System#nanoTime()}
          */
-        private boolean processTempoChange(@NonNull final MetaMessage metaMessage) {
-            if (metaMessage.getLength() == 6 && metaMessage.getStatus() == MetaMessage.META) {
-                final byte[] message = metaMessage.getMessage();
-                if (message != null && (message[1] & 0xff) == MetaMessage.TYPE_TEMPO && message[2] == 3) {
-                    final int tempo = (message[5] & 0xff) | //
-                            ((message[4] & 0xff) << 8) | //
-                            ((message[3] & 0xff) << 16);
-
-                    setTempoInMPQ(tempo);
-                    return true;
+        private long getEventTime(final long tick) {
+            return tickPositionSetTime + (long) ((tick - tickPosition) * getNanosecondsPerTick() / getTempoFactor());
+        }
+
+        /**
+         * Wait until the specified time, or the waiting has been cancelled by stopping or seeking.<br />
+         * With the high resolution timing, the thread waits coarsely at first, and then spins for the final approach.
+         *
+         * @param deadline the time in {@link System#nanoTime()}
+         */
+        private void waitUntil(final long deadline) {
+            if (deadline - System.nanoTime() <= 0) {
+                // the event is already due: continue the batch
+                return;
+            }
+
+            // the batch has finished
+            flushReceivers();
+
+            final long spinLength = highResolutionTiming ? spinWaitNanos : 0;
+            synchronized (this) {
+                try {
+                    final long waitLength = deadline - System.nanoTime() - spinLength;
+                    if (waitLength > 0 && isRunning && pendingSeekTick.get() == NO_SEEK && !needRefreshPlayingTrack && !needReleaseMutedNotes) {
+                        wait(waitLength / 1000000L, (int) (waitLength % 1000000L));
+                    }
+                } catch (final InterruptedException ignored) {
+                    // ignore exception
+                }
+            }
+
+            if (spinLength > 0) {
+                while (System.nanoTime() < deadline && isRunning && pendingSeekTick.get() == NO_SEEK && !needRefreshPlayingTrack && !needReleaseMutedNotes) {
+                    // busy wait
+                }
+            }
+        }
+
+        /**
+         * Check if the packed message is the NoteOff of the note started by the track, and still playing
+         *
+         * @param packedMessage the packed message
+         * @param trackIndex the source track index of the message
+         * @return true if the message releases the playing note
+         */
+        private boolean isReleasingNote(final int packedMessage, final int trackIndex) {
+            if (PlaybackTimeline.getKind(packedMessage) != PlaybackTimeline.KIND_SHORT) {
+                return false;
+            }
+
+            final int status = PlaybackTimeline.getStatus(packedMessage);
+            final int command = status & ShortMessage.MASK_EVENT;
+            if (command == ShortMessage.NOTE_OFF || (command == ShortMessage.NOTE_ON && PlaybackTimeline.getData2(packedMessage) == 0)) {
+                synchronized (playingNotes) {
+                    return playingNotes.getOwner(status & ShortMessage.MASK_CHANNEL, PlaybackTimeline.getData1(packedMessage)) == trackIndex;
                 }
             }
             return false;
         }
 
+        /**
+         * Seek to the specified tick, and send the channel state at the tick to the receivers.
+         *
+         * @param tick the tick
+         * @return the first event index to play
+         */
+        private int chaseTo(final long tick) {
+            discardScheduledMessages();
+            stopAllPlayingNotes(0);
+
+            if (chaseIndex == null) {
+                final long snapshotInterval;
+                if (sequence == null || sequence.getDivisionType() == Sequence.PPQ) {
+                    // every 4 bars of 4/4
+                    snapshotInterval = sequence == null ? 0 : sequence.getResolution() * 16L;
+                } else {
+                    // every 8 seconds
+                    snapshotInterval = (long) (sequence.getDivisionType() * sequence.getResolution() * 8);
+                }
+                chaseIndex = ChaseIndex.build(playbackTimeline, snapshotInterval);
+            }
+
+            final int index = chaseIndex.restore(tick, chaseState);
+            chaseIndex.send(chaseState, receiversProxy);
+            if (chaseState.getTempoInMPQ() != ChaseIndex.NOT_SET) {
+                setTempoInMPQ(chaseState.getTempoInMPQ());
+            }
+
+            tickPosition = tick;
+            tickPositionSetTime = System.nanoTime();
+            return index;
+        }
+
         /**
          * Merge current sequence's track to play
          */
         private void refreshPlayingTrack() {
+            needRefreshPlayingTrack = false;
             if (sequence == null) {
                 return;
             }
 
             final Track[] tracks = sequence.getTracks();
             if (tracks.length > 0) {
-                try {
-                    // at first, merge all track into one track
-                    playingTrack = TrackUtils.mergeSequenceToTrack(SequencerImpl.this, recordEnable);
-                } catch (final InvalidMidiDataException ignored) {
-                    // ignore exception
+                // the muted tracks are merged too, the track mute and solo is applied while playing
+                updatePlayableTrackMask();
+                if (isRecording) {
+                    for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
+                        final Set<Integer> recordEnableChannels = recordEnable.get(tracks[trackIndex]);
+                        if (recordEnableChannels != null && recordEnableChannels.size() > 0) {
+                            // currently recording track, ignore
+                            tracks[trackIndex] = null;
+                        }
+                    }
                 }
+
+                // at first, merge all track into one track, and compile it to play
+                final TempoMap currentTempoMap = TempoMap.fromSequence(sequence);
+                tempoMap = currentTempoMap;
+                final Track mergedTrack = new Track();
+                final int[] trackIndices = TrackUtils.mergeTracks(tracks, mergedTrack);
+                playbackTimeline = PlaybackTimeline.compile(mergedTrack, trackIndices, currentTempoMap);
+                chaseIndex = null;
             }
         }
 
@@ -607,16 +873,17 @@ public class SequencerImpl implements Sequencer {
     @Override
     public void open() throws MidiUnavailableException {
         // open devices
-        synchronized (receivers) {
-            receivers.clear();
-            receivers.addAll(MidiSystemUtils.getReceivers());
-        }
+        final List<Receiver> systemReceivers = MidiSystemUtils.getReceivers();
+        setReceivers(systemReceivers.toArray(new Receiver[systemReceivers.size()]));
 
         synchronized (transmitters) {
             transmitters.clear();
             transmitters.addAll(MidiSystemUtils.getTransmitters());
         }
 
+        // must be set before the thread starts, or the thread may finish immediately
+        isOpen = true;
+
         if (sequencerThread == null) {
             sequencerThread = new SequencerThread();
             synchronized (sequencers) {
@@ -630,7 +897,6 @@ public class SequencerImpl implements Sequencer {
             }
         }
 
-        isOpen = true;
         synchronized (sequencerThread) {
             sequencerThread.notifyAll();
         }
@@ -651,10 +917,6 @@ public class SequencerImpl implements Sequencer {
     public void close() {
         // FIXME frequently calling 'close and open' causes app freeze(can't stop playing)
 
-        synchronized (receivers) {
-            receivers.clear();
-        }
-
         synchronized (transmitters) {
             transmitters.clear();
         }
@@ -667,13 +929,23 @@ public class SequencerImpl implements Sequencer {
             sequencerThread = null;
         }
 
+        // the sequencer thread has been stopped, the receivers can be removed
+        setReceivers(emptyReceivers);
+
         synchronized (metaEventListeners) {
             metaEventListeners.clear();
+            metaEventListenerArray = emptyMetaEventListeners;
         }
 
-        synchronized (controllerEventListenerMap) {
-            controllerEventListenerMap.clear();
+        synchronized (controllerEventListeners) {
+            for (int controllerId = 0; controllerId < 128; controllerId++) {
+                controllerEventListeners.set(controllerId, null);
+            }
+            controllerEventListenerMaskLow = 0;
+            controllerEventListenerMaskHigh = 0;
         }
+
+        eventListenerDispatcher.shutdown();
     }
 
     @Override
@@ -683,9 +955,7 @@ public class SequencerImpl implements Sequencer {
 
     @Override
     public int getMaxReceivers() {
-        synchronized (receivers) {
-            return receivers.size();
-        }
+        return receivers.length;
     }
 
     @Override
@@ -698,20 +968,42 @@ public class SequencerImpl implements Sequencer {
     @NonNull
     @Override
     public Receiver getReceiver() throws MidiUnavailableException {
-        synchronized (receivers) {
-            if (receivers.isEmpty()) {
-                throw new MidiUnavailableException("Receiver not found");
-            } else {
-                return receivers.get(0);
-            }
+        final Receiver[] currentReceivers = receivers;
+        if (currentReceivers.length == 0) {
+            throw new MidiUnavailableException("Receiver not found");
+        } else {
+            return currentReceivers[0];
         }
     }
 
     @NonNull
     @Override
     public List<Receiver> getReceivers() {
-        synchronized (receivers) {
-            return Collections.unmodifiableList(receivers);
+        return Collections.unmodifiableList(Arrays.asList(receivers));
+    }
+
+    /**
+     * Replace the receivers, and create the receivers to send the messages
+     *
+     * @param newReceivers the receivers
+     */
+    private void setReceivers(@NonNull final Receiver[] newReceivers) {
+        synchronized (receiversLock) {
+            final Receiver[] previousOutputReceivers = outputReceivers;
+            final Receiver[] newOutputReceivers = new Receiver[newReceivers.length];
+            for (int i = 0; i < newReceivers.length; i++) {
+                newOutputReceivers[i] = asynchronousReceivers ? new AsyncReceiver(newReceivers[i]) : newReceivers[i];
+            }
+
+            receivers = newReceivers;
+            outputReceivers = newOutputReceivers;
+
+            // stop the delivering threads of the previous receivers
+            for (final Receiver receiver : previousOutputReceivers) {
+                if (receiver instanceof AsyncReceiver) {
+                    receiver.close();
+                }
+            }
         }
     }
 
@@ -738,54 +1030,129 @@ public class SequencerImpl implements Sequencer {
     @NonNull
     @Override
     public int[] addControllerEventListener(@NonNull final ControllerEventListener listener, @NonNull final int[] controllers) {
-        synchronized (controllerEventListenerMap) {
+        synchronized (controllerEventListeners) {
+            final int[] registered = new int[controllers.length];
+            int registeredCount = 0;
             for (final int controllerId : controllers) {
-                Set<ControllerEventListener> listeners = controllerEventListenerMap.get(controllerId);
+                if (controllerId < 0 || controllerId >= 128) {
+                    continue;
+                }
+
+                final ControllerEventListener[] listeners = controllerEventListeners.get(controllerId);
                 if (listeners == null) {
-                    listeners = new HashSet<ControllerEventListener>();
+                    controllerEventListeners.set(controllerId, new ControllerEventListener[] { listener });
+                } else if (!containsListener(listeners, listener)) {
+                    final ControllerEventListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+                    newListeners[listeners.length] = listener;
+                    controllerEventListeners.set(controllerId, newListeners);
                 }
-                listeners.add(listener);
-                controllerEventListenerMap.put(controllerId, listeners);
+                registered[registeredCount++] = controllerId;
             }
-            return controllers;
+            updateControllerEventListenerMask();
+            return registeredCount == controllers.length ? controllers : Arrays.copyOf(registered, registeredCount);
         }
     }
 
     @NonNull
     @Override
     public int[] removeControllerEventListener(@NonNull final ControllerEventListener listener, @NonNull final int[] controllers) {
-        synchronized (controllerEventListenerMap) {
-            final List<Integer> resultList = new ArrayList<Integer>();
+        synchronized (controllerEventListeners) {
+            final int[] remaining = new int[controllers.length];
+            int remainingCount = 0;
             for (final int controllerId : controllers) {
-                final Set<ControllerEventListener> listeners = controllerEventListenerMap.get(controllerId);
-                if (listeners != null && listeners.contains(listener)) {
-                    listeners.remove(listener);
+                final ControllerEventListener[] listeners = controllerId >= 0 && controllerId < 128 ? controllerEventListeners.get(controllerId) : null;
+                if (listeners != null && containsListener(listeners, listener)) {
+                    controllerEventListeners.set(controllerId, removeListener(listeners, listener));
                 } else {
                     // remaining controller id
-                    resultList.add(controllerId);
+                    remaining[remainingCount++] = controllerId;
                 }
-                controllerEventListenerMap.put(controllerId, listeners);
             }
+            updateControllerEventListenerMask();
 
             // returns currently registered controller ids for the argument specified listener
-            final int[] resultPrimitiveArray = new int[resultList.size()];
-            for (int i = 0; i < resultPrimitiveArray.length; i++) {
-                final Integer resultValue = resultList.get(i);
-                if (resultValue == null) {
-                    continue;
-                }
+            return Arrays.copyOf(remaining, remainingCount);
+        }
+    }
+
+    /**
+     * Check if the listener is contained in the listeners
+     *
+     * @param listeners the listeners
+     * @param listener the listener
+     * @return true if contained
+     */
+    private static boolean containsListener(@NonNull final ControllerEventListener[] listeners, @NonNull final ControllerEventListener listener) {
+        for (final ControllerEventListener eventListener : listeners) {
+            if (eventListener.equals(listener)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create the listener array without the listener
+     *
+     * @param listeners the listeners, contains the listener
+     * @param listener the listener to remove
+     * @return the new listener array, null if empty
+     */
+    @Nullable
+    private static ControllerEventListener[] removeListener(@NonNull final ControllerEventListener[] listeners, @NonNull final ControllerEventListener listener) {
+        if (listeners.length <= 1) {
+            return null;
+        }
 
-                resultPrimitiveArray[i] = resultValue;
+        final ControllerEventListener[] newListeners = new ControllerEventListener[listeners.length - 1];
+        int count = 0;
+        for (final ControllerEventListener eventListener : listeners) {
+            if (!eventListener.equals(listener) && count < newListeners.length) {
+                newListeners[count++] = eventListener;
             }
-            return resultPrimitiveArray;
         }
+        return newListeners;
+    }
+
+    /**
+     * Update the mask of the controllers with the listeners, must be called with locking controllerEventListeners
+     */
+    private void updateControllerEventListenerMask() {
+        long maskLow = 0;
+        long maskHigh = 0;
+        for (int controllerId = 0; controllerId < 128; controllerId++) {
+            if (controllerEventListeners.get(controllerId) != null) {
+                if (controllerId < 64) {
+                    maskLow |= 1L << controllerId;
+                } else {
+                    maskHigh |= 1L << (controllerId - 64);
+                }
+            }
+        }
+        controllerEventListenerMaskLow = maskLow;
+        controllerEventListenerMaskHigh = maskHigh;
+    }
+
+    /**
+     * Check if the controller has the listeners, without locking
+     *
+     * @param controllerId the controller number, 0-127
+     * @return true if the listeners are registered
+     */
+    private boolean hasControllerEventListeners(final int controllerId) {
+        if (controllerId < 64) {
+            return (controllerEventListenerMaskLow & (1L << controllerId)) != 0;
+        }
+        return (controllerEventListenerMaskHigh & (1L << (controllerId - 64))) != 0;
     }
 
     @Override
     public boolean addMetaEventListener(@NonNull final MetaEventListener listener) {
         // return true if registered successfully
         synchronized (metaEventListeners) {
-            return metaEventListeners.add(listener);
+            final boolean added = metaEventListeners.add(listener);
+            metaEventListenerArray = metaEventListeners.toArray(new MetaEventListener[metaEventListeners.size()]);
+            return added;
         }
     }
 
@@ -793,9 +1160,68 @@ public class SequencerImpl implements Sequencer {
     public void removeMetaEventListener(@NonNull final MetaEventListener listener) {
         synchronized (metaEventListeners) {
             metaEventListeners.remove(listener);
+            metaEventListenerArray = metaEventListeners.toArray(new MetaEventListener[metaEventListeners.size()]);
+        }
+    }
+
+    /**
+     * Call the event listeners for the message, called on the executor of the listeners
+     *
+     * @param message the message
+     */
+    private void callEventListeners(@NonNull final MidiMessage message) {
+        if (message instanceof MetaMessage) {
+            for (final MetaEventListener metaEventListener : metaEventListenerArray) {
+                metaEventListener.meta((MetaMessage) message);
+            }
+        } else if (message instanceof ShortMessage && ((ShortMessage) message).getCommand() == ShortMessage.CONTROL_CHANGE) {
+            final ControllerEventListener[] eventListeners = controllerEventListeners.get(((ShortMessage) message).getData1() & 0x7f);
+            if (eventListeners != null) {
+                for (final ControllerEventListener eventListener : eventListeners) {
+                    eventListener.controlChange((ShortMessage) message);
+                }
+            }
         }
     }
 
+    /**
+     * Set the executor to call the {@link MetaEventListener}s and the {@link ControllerEventListener}s.<br />
+     * The listeners are called asynchronously from the sequencer thread, so the slow listener won't delay the playing.
+     *
+     * @param executor the executor, such as the main thread executor for the UI. null: use the dedicated thread
+     */
+    public void setEventListenerExecutor(@Nullable final Executor executor) {
+        eventListenerDispatcher.setExecutor(executor);
+    }
+
+    /**
+     * Get the behavior when the queue of the event listener calls is full
+     *
+     * @return the policy
+     */
+    @NonNull
+    public EventListenerOverflowPolicy getEventListenerOverflowPolicy() {
+        return eventListenerDispatcher.getOverflowPolicy();
+    }
+
+    /**
+     * Set the behavior when the queue of the event listener calls is full, the listeners can't keep up with the events
+     *
+     * @param overflowPolicy the policy, the default is {@link EventListenerOverflowPolicy#DISCARD_OLDEST}
+     */
+    public void setEventListenerOverflowPolicy(@NonNull final EventListenerOverflowPolicy overflowPolicy) {
+        eventListenerDispatcher.setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * Get the number of the event listener calls discarded by the queue overflow
+     *
+     * @return the number of the discarded calls
+     */
+    public long getDiscardedEventListenerCallCount() {
+        return eventListenerDispatcher.getDiscardedCount();
+    }
+
     @Override
     public int getLoopCount() {
         return loopCount;
@@ -874,12 +1300,20 @@ public class SequencerImpl implements Sequencer {
 
     @Override
     public long getMicrosecondPosition() {
-        return (long) (getTickPosition() / getTicksPerMicrosecond());
+        final TempoMap currentTempoMap = tempoMap;
+        if (currentTempoMap == null) {
+            return 0;
+        }
+        return currentTempoMap.tickToMicrosecond(getTickPosition());
     }
 
     @Override
     public void setMicrosecondPosition(final long microseconds) {
-        setTickPosition((long) (getTicksPerMicrosecond() * microseconds));
+        final TempoMap currentTempoMap = tempoMap;
+        if (currentTempoMap == null) {
+            return;
+        }
+        setTickPosition(currentTempoMap.microsecondToTick(microseconds));
     }
 
     /**
@@ -904,9 +1338,178 @@ public class SequencerImpl implements Sequencer {
         return ticksPerMicrosecond;
     }
 
+    /**
+     * Get the length of one tick with the current tempo
+     *
+     * @return nanoseconds per tick, NaN: sequence is null
+     */
+    double getNanosecondsPerTick() {
+        if (sequence == null) {
+            return Double.NaN;
+        }
+
+        if (sequence.getDivisionType() == Sequence.PPQ) {
+            // PPQ : 60000000000 / tempoInBPM / resolution nanoseconds per tick
+            return 60000000000.0 / tempoInBPM / sequence.getResolution();
+        } else {
+            // SMPTE : 1000000000 / (divisionType * resolution) nanoseconds per tick
+            return 1000000000.0 / (sequence.getDivisionType() * sequence.getResolution());
+        }
+    }
+
+    /**
+     * Get the setting of the high resolution timing
+     *
+     * @return true: the events are timed with a coarse wait and a busy wait for the final approach
+     */
+    public boolean isHighResolutionTiming() {
+        return highResolutionTiming;
+    }
+
+    /**
+     * Set the high resolution timing.<br />
+     * The sequencer thread waits until {@link #getSpinWaitNanos()} before the event, and spins for the final approach.
+     * This improves the timing accuracy at the cost of CPU usage.
+     *
+     * @param enabled true: enable the high resolution timing
+     */
+    public void setHighResolutionTiming(final boolean enabled) {
+        highResolutionTiming = enabled;
+    }
+
+    /**
+     * Get the length of the busy wait used with the high resolution timing
+     *
+     * @return the length in nanoseconds
+     */
+    public long getSpinWaitNanos() {
+        return spinWaitNanos;
+    }
+
+    /**
+     * Set the length of the busy wait used with the high resolution timing
+     *
+     * @param nanos the length in nanoseconds, default: {@link #DEFAULT_SPIN_WAIT_NANOS}
+     */
+    public void setSpinWaitNanos(final long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Invalid spin wait length:" + nanos);
+        }
+        spinWaitNanos = nanos;
+    }
+
+    /**
+     * Get the lookahead window
+     *
+     * @return the lookahead in microseconds, 0: the lookahead is disabled
+     */
+    public long getLookaheadMicroseconds() {
+        return lookaheadMicroseconds;
+    }
+
+    /**
+     * Set the lookahead window.<br />
+     * With the lookahead, the upcoming events in the window are sent in advance at once, and the {@link ScheduledReceiver}s deliver them at the event time.
+     * The other receivers and the event listeners are notified up to the lookahead window before the event time.
+     *
+     * @param microseconds the lookahead in microseconds, 0: disable the lookahead
+     */
+    public void setLookaheadMicroseconds(final long microseconds) {
+        if (microseconds < 0) {
+            throw new IllegalArgumentException("Invalid lookahead:" + microseconds);
+        }
+        lookaheadMicroseconds = microseconds;
+    }
+
+    /**
+     * Check if the messages are delivered to each receiver asynchronously
+     *
+     * @return true if the asynchronous delivery is enabled
+     */
+    public boolean isAsynchronousReceivers() {
+        return asynchronousReceivers;
+    }
+
+    /**
+     * Set the asynchronous delivery to the receivers.<br />
+     * If enabled, each receiver has its own queue and thread, so the slow receiver(such as BLE MIDI) won't delay the sequencer and the other receivers.
+     *
+     * @param asynchronous true: deliver asynchronously, false: deliver on the sequencer thread
+     */
+    public void setAsynchronousReceivers(final boolean asynchronous) {
+        synchronized (receiversLock) {
+            if (asynchronousReceivers == asynchronous) {
+                return;
+            }
+            asynchronousReceivers = asynchronous;
+            setReceivers(receivers);
+        }
+    }
+
+    /**
+     * Get the threshold to release the playing notes with All Notes Off
+     *
+     * @return the number of the playing notes in the channel, 0: disabled
+     */
+    public int getAllNotesOffThreshold() {
+        return allNotesOffThreshold;
+    }
+
+    /**
+     * Set the threshold to release the playing notes with All Notes Off.<br />
+     * On stopping or looping, if the channel has more playing notes than the threshold, one All Notes Off control change(123) is sent instead of the NoteOff messages.
+     * The notes held by the sustain pedal are not released by All Notes Off.
+     *
+     * @param threshold the number of the playing notes in the channel, 0: always send NoteOff messages
+     */
+    public void setAllNotesOffThreshold(final int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Invalid threshold:" + threshold);
+        }
+        allNotesOffThreshold = threshold;
+    }
+
+    /**
+     * Get the number of the events measured the lateness
+     *
+     * @return the number of the events
+     */
+    public long getEventLatenessCount() {
+        return latenessStatistics.getEventCount();
+    }
+
+    /**
+     * Get the average lateness of the dispatched events
+     *
+     * @return the average lateness in nanoseconds
+     */
+    public long getAverageEventLatenessNanos() {
+        return latenessStatistics.getAverageLatenessNanos();
+    }
+
+    /**
+     * Get the maximum lateness of the dispatched events
+     *
+     * @return the maximum lateness in nanoseconds
+     */
+    public long getMaxEventLatenessNanos() {
+        return latenessStatistics.getMaxLatenessNanos();
+    }
+
+    /**
+     * Clear the lateness statistics
+     */
+    public void resetEventLatenessStatistics() {
+        latenessStatistics.reset();
+    }
+
     @Override
     public long getMicrosecondLength() {
-        return sequence.getMicrosecondLength();
+        final TempoMap currentTempoMap = tempoMap;
+        if (currentTempoMap == null) {
+            return 0;
+        }
+        return currentTempoMap.tickToMicrosecond(getTickLength());
     }
 
     @Override
@@ -922,7 +1525,9 @@ public class SequencerImpl implements Sequencer {
     @Override
     public void setSequence(@Nullable final Sequence sequence) throws InvalidMidiDataException {
         this.sequence = sequence;
+        tempoMap = sequence == null ? null : TempoMap.fromSequence(sequence);
 
+        updatePlayableTrackMask();
         if (sequencerThread != null && sequence != null) {
             sequencerThread.needRefreshPlayingTrack = true;
         }
@@ -961,6 +1566,7 @@ public class SequencerImpl implements Sequencer {
         }
 
         tempoFactor = factor;
+        notifyTempoChanged();
     }
 
     @Override
@@ -971,6 +1577,7 @@ public class SequencerImpl implements Sequencer {
     @Override
     public void setTempoInBPM(final float bpm) {
         tempoInBPM = bpm;
+        notifyTempoChanged();
     }
 
     @Override
@@ -981,6 +1588,17 @@ public class SequencerImpl implements Sequencer {
     @Override
     public void setTempoInMPQ(final float mpq) {
         tempoInBPM = 60000000.0f / mpq;
+        notifyTempoChanged();
+    }
+
+    /**
+     * Let the recorder follow the tempo changed by the user, the records after now are converted with the new tempo
+     */
+    private void notifyTempoChanged() {
+        final SequencerThread thread = sequencerThread;
+        if (thread != null && sequence != null) {
+            thread.midiRecorder.changeTempo(System.nanoTime(), getNanosecondsPerTick(), tempoFactor);
+        }
     }
 
     @Override
@@ -996,7 +1614,7 @@ public class SequencerImpl implements Sequencer {
         if (sequencerThread == null) {
             return 0;
         }
-        if (!isRunning) {
+        if (!isRunning && sequencerThread.pendingSeekTick.get() == NO_SEEK) {
             return sequencerThread.tickPosition;
         }
         return sequencerThread.getTickPosition();
@@ -1011,22 +1629,84 @@ public class SequencerImpl implements Sequencer {
 
     @Override
     public boolean getTrackMute(final int track) {
-        return trackMute.get(track);
+        synchronized (trackMute) {
+            return trackMute.get(track);
+        }
     }
 
     @Override
     public void setTrackMute(final int track, final boolean mute) {
-        trackMute.put(track, mute);
+        synchronized (trackMute) {
+            trackMute.put(track, mute);
+            updatePlayableTrackMask();
+        }
     }
 
     @Override
     public boolean getTrackSolo(final int track) {
-        return trackSolo.get(track);
+        synchronized (trackMute) {
+            return trackSolo.get(track);
+        }
     }
 
     @Override
     public void setTrackSolo(final int track, final boolean solo) {
-        trackSolo.put(track, solo);
+        synchronized (trackMute) {
+            trackSolo.put(track, solo);
+            updatePlayableTrackMask();
+        }
+    }
+
+    /**
+     * Update the bitmask of the playable tracks from the track mute and solo, and release the notes of the muted tracks
+     */
+    private void updatePlayableTrackMask() {
+        synchronized (trackMute) {
+            final Sequence currentSequence = sequence;
+            int trackCount = currentSequence == null ? 0 : currentSequence.getTracks().length;
+            boolean hasSoloTrack = false;
+            for (int i = 0; i < trackSolo.size(); i++) {
+                trackCount = Math.max(trackCount, trackSolo.keyAt(i) + 1);
+                if (trackSolo.valueAt(i)) {
+                    hasSoloTrack = true;
+                }
+            }
+            for (int i = 0; i < trackMute.size(); i++) {
+                trackCount = Math.max(trackCount, trackMute.keyAt(i) + 1);
+            }
+
+            final long[] mask = new long[(trackCount + 63) >>> 6];
+            for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+                if (!trackMute.get(trackIndex) && (!hasSoloTrack || trackSolo.get(trackIndex))) {
+                    mask[trackIndex >>> 6] |= 1L << trackIndex;
+                }
+            }
+            playableTrackMask = mask;
+        }
+
+        final SequencerThread thread = sequencerThread;
+        if (thread != null) {
+            thread.needReleaseMutedNotes = true;
+            synchronized (thread) {
+                thread.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Check if the track is not muted by the track mute and solo
+     *
+     * @param trackIndex the track index, the negative value means the event is not from the sequence's track
+     * @return true if the track is playable
+     */
+    private boolean isTrackPlayable(final int trackIndex) {
+        if (trackIndex < 0) {
+            return true;
+        }
+
+        final long[] mask = playableTrackMask;
+        // the tracks added after the mask has been updated are playable until the next refresh
+        return (trackIndex >>> 6) >= mask.length || (mask[trackIndex >>> 6] & (1L << trackIndex)) != 0;
     }
 
     @Override
@@ -0,0 +1,259 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+import jp.kshoji.javax.sound.midi.MetaMessage;
+import jp.kshoji.javax.sound.midi.MidiEvent;
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.Track;
+
+/**
+ * Tempo map of the {@link Sequence}, converts tick and microsecond each other.<br />
+ * The elapsed microseconds at each tempo change are stored as prefix sums, so the conversion is done with a binary search.
+ *
+ * @author K.Shoji
+ */
+public final class TempoMap {
+    /**
+     * The default tempo in MPQ(120 BPM), used until the first tempo change
+     */
+    public static final int DEFAULT_TEMPO_IN_MPQ = 500000;
+
+    private final boolean isPpq;
+    private final int resolution;
+    private final double ticksPerMicrosecond;
+
+    private final int size;
+    private final long[] ticks;
+    private final int[] temposInMPQ;
+    private final double[] microseconds;
+
+    /**
+     * Constructor
+     *
+     * @param divisionType the division type of the sequence
+     * @param resolution the resolution of the sequence
+     * @param tempoTicks the ticks of the tempo changes, must be sorted
+     * @param temposInMPQ the tempos(MPQ) of the tempo changes
+     * @param count the number of the tempo changes
+     */
+    public TempoMap(final float divisionType, final int resolution, @NonNull final long[] tempoTicks, @NonNull final int[] temposInMPQ, final int count) {
+        this.isPpq = divisionType == Sequence.PPQ;
+        this.resolution = resolution;
+        this.ticksPerMicrosecond = divisionType * resolution / 1000000.0;
+
+        // the first segment always starts at tick 0
+        final long[] segmentTicks = new long[count + 1];
+        final int[] segmentTempos = new int[count + 1];
+        segmentTicks[0] = 0;
+        segmentTempos[0] = DEFAULT_TEMPO_IN_MPQ;
+        int segmentCount = 1;
+        for (int i = 0; i < count; i++) {
+            if (temposInMPQ[i] <= 0) {
+                continue;
+            }
+
+            if (segmentTicks[segmentCount - 1] == tempoTicks[i]) {
+                // same tick: the later one wins
+                segmentTempos[segmentCount - 1] = temposInMPQ[i];
+            } else {
+                segmentTicks[segmentCount] = tempoTicks[i];
+                segmentTempos[segmentCount] = temposInMPQ[i];
+                segmentCount++;
+            }
+        }
+
+        this.size = segmentCount;
+        this.ticks = segmentTicks;
+        this.temposInMPQ = segmentTempos;
+        this.microseconds = new double[segmentCount];
+        for (int i = 1; i < segmentCount; i++) {
+            microseconds[i] = microseconds[i - 1] + segmentMicroseconds(i - 1, ticks[i] - ticks[i - 1]);
+        }
+    }
+
+    /**
+     * Create the {@link TempoMap} from the tempo change events in the {@link Sequence}
+     *
+     * @param sequence the sequence
+     * @return the tempo map
+     */
+    @NonNull
+    public static TempoMap fromSequence(@NonNull final Sequence sequence) {
+        if (sequence.getDivisionType() != Sequence.PPQ) {
+            // SMPTE: the tempo changes have no effect
+            return new TempoMap(sequence.getDivisionType(), sequence.getResolution(), new long[0], new int[0], 0);
+        }
+
+        int count = 0;
+        long[] tempoTicks = new long[16];
+        int[] temposInMPQ = new int[16];
+        for (final Track track : sequence.getTracks()) {
+            final int eventCount = track.size();
+            for (int i = 0; i < eventCount; i++) {
+                final MidiEvent midiEvent = track.get(i);
+                final int tempo = getTempoInMPQ(midiEvent.getMessage());
+                if (tempo < 0) {
+                    continue;
+                }
+
+                if (count == tempoTicks.length) {
+                    tempoTicks = Arrays.copyOf(tempoTicks, count * 2);
+                    temposInMPQ = Arrays.copyOf(temposInMPQ, count * 2);
+                }
+                tempoTicks[count] = midiEvent.getTick();
+                temposInMPQ[count] = tempo;
+                count++;
+            }
+        }
+
+        return fromTempoChanges(sequence.getDivisionType(), sequence.getResolution(), tempoTicks, temposInMPQ, count);
+    }
+
+    /**
+     * Create the {@link TempoMap} from the unsorted tempo changes.<br />
+     * The tempo changes at the same tick are applied in the order of the arrays.
+     *
+     * @param divisionType the division type of the sequence
+     * @param resolution the resolution of the sequence
+     * @param tempoTicks the ticks of the tempo changes
+     * @param temposInMPQ the tempos(MPQ) of the tempo changes
+     * @param count the number of the tempo changes
+     * @return the tempo map
+     */
+    @NonNull
+    public static TempoMap fromTempoChanges(final float divisionType, final int resolution, @NonNull final long[] tempoTicks, @NonNull final int[] temposInMPQ, final int count) {
+        if (divisionType != Sequence.PPQ) {
+            // SMPTE: the tempo changes have no effect
+            return new TempoMap(divisionType, resolution, new long[0], new int[0], 0);
+        }
+
+        // sort key: tick, and the order of appearance
+        final long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = (tempoTicks[i] << 24) | i;
+        }
+        Arrays.sort(keys);
+
+        final long[] sortedTicks = new long[count];
+        final int[] sortedTempos = new int[count];
+        for (int i = 0; i < count; i++) {
+            sortedTicks[i] = keys[i] >>> 24;
+            sortedTempos[i] = temposInMPQ[(int) (keys[i] & 0xffffff)];
+        }
+
+        return new TempoMap(divisionType, resolution, sortedTicks, sortedTempos, count);
+    }
+
+    /**
+     * Get the tempo from the tempo change message
+     *
+     * @param midiMessage the message
+     * @return the tempo in MPQ, -1 if the message is not a tempo change message
+     */
+    static int getTempoInMPQ(@NonNull final MidiMessage midiMessage) {
+        if (midiMessage instanceof MetaMessage && ((MetaMessage) midiMessage).getType() == MetaMessage.TYPE_TEMPO) {
+            // read the last 3 bytes without copying the data
+            final int length = midiMessage.getLength();
+            if (((MetaMessage) midiMessage).getDataLength() == 3) {
+                return (midiMessage.getByte(length - 3) << 16) | (midiMessage.getByte(length - 2) << 8) | midiMessage.getByte(length - 1);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the length of the segment in microseconds
+     *
+     * @param segment the segment index
+     * @param tickLength the length of ticks in the segment
+     * @return the length in microseconds
+     */
+    private double segmentMicroseconds(final int segment, final long tickLength) {
+        if (resolution <= 0) {
+            return 0;
+        }
+        return (double) tickLength * temposInMPQ[segment] / resolution;
+    }
+
+    /**
+     * Convert the tick to microseconds
+     *
+     * @param tick the tick
+     * @return the time in microseconds
+     */
+    public long tickToMicrosecond(final long tick) {
+        if (!isPpq) {
+            if (ticksPerMicrosecond <= 0) {
+                return 0;
+            }
+            return (long) (tick / ticksPerMicrosecond);
+        }
+
+        final int segment = findSegmentByTick(tick);
+        return (long) (microseconds[segment] + segmentMicroseconds(segment, tick - ticks[segment]));
+    }
+
+    /**
+     * Convert the microseconds to tick
+     *
+     * @param microsecond the time in microseconds
+     * @return the tick
+     */
+    public long microsecondToTick(final long microsecond) {
+        if (!isPpq) {
+            return (long) (microsecond * ticksPerMicrosecond);
+        }
+
+        // find the last segment which starts at or before the time
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (microseconds[middle] <= microsecond) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return ticks[low] + (long) ((microsecond - microseconds[low]) * resolution / temposInMPQ[low]);
+    }
+
+    /**
+     * Get the tempo at the specified tick
+     *
+     * @param tick the tick
+     * @return the tempo in MPQ
+     */
+    public int getTempoInMPQ(final long tick) {
+        if (!isPpq) {
+            return DEFAULT_TEMPO_IN_MPQ;
+        }
+
+        return temposInMPQ[findSegmentByTick(tick)];
+    }
+
+    /**
+     * Find the last segment which starts at or before the tick
+     *
+     * @param tick the tick
+     * @return the segment index
+     */
+    private int findSegmentByTick(final long tick) {
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (ticks[middle] <= tick) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+}
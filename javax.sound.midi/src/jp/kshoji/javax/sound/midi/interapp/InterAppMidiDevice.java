@@ -174,6 +174,24 @@ public class InterAppMidiDevice implements MidiDevice {
         return Collections.unmodifiableList(result);
     }
 
+    /**
+     * Set the buffered sending of the all receivers
+     *
+     * @param bufferedSending true: enable the buffered sending
+     * @see InterAppMidiReceiver#setBufferedSending(boolean)
+     */
+    public void setBufferedSending(boolean bufferedSending) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            synchronized (receivers) {
+                for (InterAppMidiReceiver receiver : receivers) {
+                    if (receiver != null) {
+                        receiver.setBufferedSending(bufferedSending);
+                    }
+                }
+            }
+        }
+    }
+
     @NonNull
     @Override
     public Transmitter getTransmitter() throws MidiUnavailableException {
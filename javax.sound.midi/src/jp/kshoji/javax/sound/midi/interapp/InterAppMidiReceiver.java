@@ -5,13 +5,14 @@ import android.media.midi.MidiReceiver;
 import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
-import android.util.Log;
 
+import java.io.Flushable;
 import java.io.IOException;
-import java.util.Arrays;
 
 import jp.kshoji.javax.sound.midi.MidiMessage;
 import jp.kshoji.javax.sound.midi.Receiver;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.impl.ScheduledReceiver;
 
 /**
  * {@link jp.kshoji.javax.sound.midi.Receiver} implementation
@@ -25,9 +26,19 @@ public class InterAppMidiReceiver extends MidiReceiver {
     /**
      * Receiver used internally
      */
-    private static class InterAppReceiver implements Receiver {
+    private static class InterAppReceiver implements ScheduledReceiver, Flushable {
         MidiReceiver midiReceiver;
 
+        private volatile boolean bufferedSending = false;
+        private final byte[] buffer;
+        private int bufferLength = 0;
+        private long bufferTimeStamp = 0;
+        private int runningStatus = 0;
+
+        private volatile long sentMessageCount = 0;
+        private volatile long sentByteCount = 0;
+        private volatile long writeCount = 0;
+
         /**
          * Constructor
          *
@@ -36,33 +47,153 @@ public class InterAppMidiReceiver extends MidiReceiver {
         @RequiresApi(api = Build.VERSION_CODES.M)
         InterAppReceiver(MidiReceiver midiReceiver) {
             this.midiReceiver = midiReceiver;
+            this.buffer = new byte[midiReceiver.getMaxMessageSize()];
         }
 
         @Override
-        public void send(@NonNull MidiMessage message, long timeStamp) {
-            try {
+        public synchronized void send(@NonNull MidiMessage message, long timeStamp) {
+            sentMessageCount++;
+
+            if (bufferedSending && message instanceof ShortMessage) {
+                final ShortMessage shortMessage = (ShortMessage) message;
+                appendShortMessage(shortMessage.getStatus(), shortMessage.getData1(), shortMessage.getData2(), shortMessage.getLength(), timeStamp);
+                return;
+            }
+
+            // keep the order of the messages
+            flushBuffer();
+
+            final int length = message.getLength();
+            if (length == 0) {
+                return;
+            }
+            if (length <= buffer.length) {
+                // the buffer is empty after flushing, and the port copies the data while writing
+                message.getMessage(0, buffer, 0, length);
+                write(buffer, 0, length, timeStamp);
+            } else {
                 byte[] midiMessage = message.getMessage();
                 if (midiMessage != null) {
-                    midiReceiver.onSend(midiMessage, 0, midiMessage.length, timeStamp);
+                    write(midiMessage, 0, midiMessage.length, timeStamp);
                 }
-            } catch (IOException ignored) {
             }
         }
 
-        private void send(byte[] midiMessage, long timeStamp) {
-            try {
-                if (midiMessage != null) {
-                    midiReceiver.onSend(midiMessage, 0, midiMessage.length, timeStamp);
+        @Override
+        public void sendScheduled(@NonNull MidiMessage message, long deliveryTime) {
+            // MidiReceiver uses the nanoseconds of System.nanoTime()
+            send(message, deliveryTime * 1000L);
+        }
+
+        @Override
+        public void discardScheduled() {
+            discard();
+        }
+
+        /**
+         * Send the raw MIDI data
+         *
+         * @param midiMessage the data
+         * @param offset the offset of the data
+         * @param count the length of the data
+         * @param timeStamp the time stamp
+         */
+        private synchronized void send(byte[] midiMessage, int offset, int count, long timeStamp) {
+            if (midiMessage != null) {
+                flushBuffer();
+                write(midiMessage, offset, count, timeStamp);
+            }
+        }
+
+        /**
+         * Append the short message to the buffer, with running status compression
+         *
+         * @param status the status
+         * @param data1 the first data
+         * @param data2 the second data
+         * @param length the length of the message
+         * @param timeStamp the time stamp
+         */
+        private void appendShortMessage(int status, int data1, int data2, int length, long timeStamp) {
+            if (bufferLength > 0 && (timeStamp != bufferTimeStamp || bufferLength + length > buffer.length)) {
+                // one port write has one time stamp
+                flushBuffer();
+            }
+            bufferTimeStamp = timeStamp;
+
+            if (status < 0xf0) {
+                // channel message: the status can be omitted with running status
+                if (status != runningStatus) {
+                    buffer[bufferLength++] = (byte) status;
+                    runningStatus = status;
                 }
+            } else {
+                buffer[bufferLength++] = (byte) status;
+                if (status < 0xf8) {
+                    // system common message clears running status, realtime message doesn't
+                    runningStatus = 0;
+                }
+            }
+
+            if (length > 1) {
+                buffer[bufferLength++] = (byte) data1;
+                if (length > 2) {
+                    buffer[bufferLength++] = (byte) data2;
+                }
+            }
+        }
+
+        /**
+         * Write the buffered data to the port
+         */
+        private void flushBuffer() {
+            if (bufferLength > 0) {
+                write(buffer, 0, bufferLength, bufferTimeStamp);
+                bufferLength = 0;
+            }
+            // the receiver may not keep running status between the port writes
+            runningStatus = 0;
+        }
+
+        /**
+         * Write the data to the port
+         *
+         * @param midiMessage the data
+         * @param offset the offset of the data
+         * @param count the length of the data
+         * @param timeStamp the time stamp
+         */
+        private void write(byte[] midiMessage, int offset, int count, long timeStamp) {
+            try {
+                midiReceiver.onSend(midiMessage, offset, count, timeStamp);
+                writeCount++;
+                sentByteCount += count;
             } catch (IOException ignored) {
             }
         }
 
+        /**
+         * Write the buffered data to the port
+         */
+        @Override
+        public synchronized void flush() {
+            flushBuffer();
+        }
+
         @Override
         public void close() {
+            flush();
         }
 
-        private void flush() {
+        /**
+         * Discard the buffered data, and the pending data in the port
+         */
+        private void discard() {
+            synchronized (this) {
+                bufferLength = 0;
+                runningStatus = 0;
+            }
+
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                 try {
                     midiReceiver.onFlush();
@@ -70,6 +201,15 @@ public class InterAppMidiReceiver extends MidiReceiver {
                 }
             }
         }
+
+        /**
+         * Clear the counters
+         */
+        private void resetCounters() {
+            sentMessageCount = 0;
+            sentByteCount = 0;
+            writeCount = 0;
+        }
     }
 
     /**
@@ -83,15 +223,15 @@ public class InterAppMidiReceiver extends MidiReceiver {
 
     @Override
     public void onSend(byte[] midiMessage, int offset, int count, long timestamp) throws IOException {
-        Log.i("InterAppMidiReceiver", "onSend message: " + Arrays.toString(midiMessage));
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            interAppReceiver.send(midiMessage,  timestamp);
+            interAppReceiver.send(midiMessage, offset, count, timestamp);
         }
     }
 
     @Override
     public void onFlush() {
-        interAppReceiver.flush();
+        // the pending data is discarded, not sent
+        interAppReceiver.discard();
     }
 
     /**
@@ -101,4 +241,64 @@ public class InterAppMidiReceiver extends MidiReceiver {
     public Receiver getMidiReceiver() {
         return interAppReceiver;
     }
+
+    /**
+     * Set the buffered sending.<br />
+     * If enabled, the consecutive short messages are packed into one port write, with running status compression.
+     * The buffer is written when the time stamp changes, when the buffer is full, or {@link Flushable#flush()} is called on the Receiver.
+     * The {@link jp.kshoji.javax.sound.midi.impl.SequencerImpl} flushes the buffer before waiting the next event.
+     *
+     * @param bufferedSending true: enable the buffered sending
+     */
+    public void setBufferedSending(boolean bufferedSending) {
+        synchronized (interAppReceiver) {
+            if (!bufferedSending) {
+                interAppReceiver.flushBuffer();
+            }
+            interAppReceiver.bufferedSending = bufferedSending;
+        }
+    }
+
+    /**
+     * Get the setting of the buffered sending
+     *
+     * @return true: the buffered sending is enabled
+     */
+    public boolean isBufferedSending() {
+        return interAppReceiver.bufferedSending;
+    }
+
+    /**
+     * Get the number of the messages sent
+     *
+     * @return the number of the messages
+     */
+    public long getSentMessageCount() {
+        return interAppReceiver.sentMessageCount;
+    }
+
+    /**
+     * Get the number of the bytes written to the port
+     *
+     * @return the number of the bytes
+     */
+    public long getSentByteCount() {
+        return interAppReceiver.sentByteCount;
+    }
+
+    /**
+     * Get the number of the port writes
+     *
+     * @return the number of the port writes
+     */
+    public long getWriteCount() {
+        return interAppReceiver.writeCount;
+    }
+
+    /**
+     * Clear the counters
+     */
+    public void resetCounters() {
+        interAppReceiver.resetCounters();
+    }
 }
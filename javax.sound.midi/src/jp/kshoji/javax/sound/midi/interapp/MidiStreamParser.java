@@ -0,0 +1,253 @@
+package jp.kshoji.javax.sound.midi.interapp;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.Receiver;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.SysexMessage;
+
+/**
+ * MIDI byte stream parser<br />
+ * Parses the stream in place, with running status, and the realtime messages interleaved.
+ * The message split into the multiple chunks is also parsed, because the state is kept between {@link #parse(byte[], int, int, long)} calls.
+ *
+ * @author K.Shoji
+ */
+public final class MidiStreamParser {
+    private static final int INITIAL_SYSEX_BUFFER_SIZE = 256;
+
+    private Receiver receiver;
+    private boolean reusingMessages = false;
+
+    // the flyweight messages, indexed by the data length
+    private final ShortMessage[] shortMessages = new ShortMessage[] { new ShortMessage(), new ShortMessage(), new ShortMessage() };
+
+    private int status = 0;
+    private int dataLength = 0;
+    private int dataCount = 0;
+    private int data1 = 0;
+
+    private boolean sysexReceiving = false;
+    private byte[] sysexBuffer = new byte[INITIAL_SYSEX_BUFFER_SIZE];
+    private int sysexLength = 0;
+
+    /**
+     * Set the receiver of the parsed messages
+     *
+     * @param receiver the receiver, null: the parsed messages are dropped
+     */
+    public void setReceiver(@Nullable Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * Set the reusing the {@link ShortMessage} instances.<br />
+     * If enabled, the delivered {@link ShortMessage} is valid only while {@link Receiver#send(jp.kshoji.javax.sound.midi.MidiMessage, long)} method,
+     * the receiver must clone it to hold.
+     *
+     * @param reusingMessages true: reuse the message instances, false: create new instance for each messages
+     */
+    public void setReusingMessages(boolean reusingMessages) {
+        this.reusingMessages = reusingMessages;
+    }
+
+    /**
+     * Discard the parsing state
+     */
+    public void reset() {
+        status = 0;
+        dataLength = 0;
+        dataCount = 0;
+        sysexReceiving = false;
+        sysexLength = 0;
+    }
+
+    /**
+     * Parse the MIDI byte stream
+     *
+     * @param message the data
+     * @param offset the offset of the data
+     * @param count the length of the data
+     * @param timeStamp the time stamp of the data
+     */
+    public void parse(@NonNull byte[] message, int offset, int count, long timeStamp) {
+        final int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            final int midiByte = message[i] & 0xff;
+
+            if (midiByte >= ShortMessage.TIMING_CLOCK) {
+                // realtime messages may appear anywhere, without affecting the state
+                if (midiByte != 0xf9 && midiByte != 0xfd) {
+                    sendShortMessage(midiByte, 0, 0, 0, timeStamp);
+                }
+                continue;
+            }
+
+            if (sysexReceiving) {
+                if (midiByte < 0x80) {
+                    appendSysex(midiByte);
+                    continue;
+                }
+
+                sysexReceiving = false;
+                if (midiByte == ShortMessage.END_OF_EXCLUSIVE) {
+                    // finished to read whole sysex
+                    appendSysex(midiByte);
+                    sendSysexMessage(timeStamp);
+                    continue;
+                }
+                // another status byte: the incomplete sysex is discarded
+            }
+
+            if (midiByte >= 0x80) {
+                processStatus(midiByte, timeStamp);
+            } else if (status != 0) {
+                processData(midiByte, timeStamp);
+            }
+            // data byte without status: ignored
+        }
+    }
+
+    /**
+     * Process the status byte
+     *
+     * @param midiByte the status byte
+     * @param timeStamp the time stamp
+     */
+    private void processStatus(int midiByte, long timeStamp) {
+        dataCount = 0;
+
+        switch (midiByte) {
+            case ShortMessage.START_OF_EXCLUSIVE:
+                status = 0;
+                sysexReceiving = true;
+                sysexLength = 0;
+                appendSysex(midiByte);
+                return;
+            case ShortMessage.MIDI_TIME_CODE:
+            case ShortMessage.SONG_SELECT:
+                status = midiByte;
+                dataLength = 1;
+                return;
+            case ShortMessage.SONG_POSITION_POINTER:
+                status = midiByte;
+                dataLength = 2;
+                return;
+            case ShortMessage.TUNE_REQUEST:
+                status = 0;
+                sendShortMessage(midiByte, 0, 0, 0, timeStamp);
+                return;
+            default:
+                break;
+        }
+
+        if (midiByte >= 0xf0) {
+            // undefined, or END_OF_EXCLUSIVE without sysex: clears running status
+            status = 0;
+            return;
+        }
+
+        // channel messages: used as running status
+        status = midiByte;
+        switch (midiByte & ShortMessage.MASK_EVENT) {
+            case ShortMessage.PROGRAM_CHANGE:
+            case ShortMessage.CHANNEL_PRESSURE:
+                dataLength = 1;
+                break;
+            default:
+                dataLength = 2;
+                break;
+        }
+    }
+
+    /**
+     * Process the data byte
+     *
+     * @param midiByte the data byte
+     * @param timeStamp the time stamp
+     */
+    private void processData(int midiByte, long timeStamp) {
+        if (dataCount == 0) {
+            data1 = midiByte;
+        }
+        dataCount++;
+
+        if (dataCount < dataLength) {
+            return;
+        }
+
+        if (dataLength == 1) {
+            sendShortMessage(status, data1, 0, 1, timeStamp);
+        } else {
+            sendShortMessage(status, data1, midiByte, 2, timeStamp);
+        }
+
+        dataCount = 0;
+        if (status >= 0xf0) {
+            // system common messages have no running status
+            status = 0;
+        }
+    }
+
+    /**
+     * Append the byte to the sysex buffer
+     *
+     * @param midiByte the byte
+     */
+    private void appendSysex(int midiByte) {
+        if (sysexLength == sysexBuffer.length) {
+            sysexBuffer = Arrays.copyOf(sysexBuffer, sysexLength * 2);
+        }
+        sysexBuffer[sysexLength++] = (byte) midiByte;
+    }
+
+    /**
+     * Send the {@link ShortMessage} to the receiver
+     *
+     * @param status the status
+     * @param data1 the first data
+     * @param data2 the second data
+     * @param dataLength the data length
+     * @param timeStamp the time stamp
+     */
+    private void sendShortMessage(int status, int data1, int data2, int dataLength, long timeStamp) {
+        final Receiver receiver = this.receiver;
+        if (receiver == null) {
+            return;
+        }
+
+        try {
+            final ShortMessage shortMessage;
+            if (reusingMessages) {
+                shortMessage = shortMessages[dataLength];
+                shortMessage.setMessage(status, data1, data2);
+            } else {
+                shortMessage = new ShortMessage(status, data1, data2);
+            }
+            receiver.send(shortMessage, timeStamp);
+        } catch (InvalidMidiDataException ignored) {
+        }
+    }
+
+    /**
+     * Send the {@link SysexMessage} in the buffer to the receiver
+     *
+     * @param timeStamp the time stamp
+     */
+    private void sendSysexMessage(long timeStamp) {
+        final Receiver receiver = this.receiver;
+        if (receiver == null) {
+            return;
+        }
+
+        try {
+            final byte[] sysexData = Arrays.copyOf(sysexBuffer, sysexLength);
+            receiver.send(new SysexMessage(sysexData, sysexData.length), timeStamp);
+        } catch (InvalidMidiDataException ignored) {
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reader for the MIDI data, used by {@link StandardMidiFileReader}.<br />
+ * Reads the {@link InputStream} through the fixed size buffer, or reads the {@link ByteBuffer}(such as memory-mapped file) directly.
+ *
+ * @author K.Shoji
+ */
+final class MidiDataReader {
+    private static final int BUFFER_SIZE = 8192;
+
+    @Nullable
+    private final InputStream inputStream;
+    private final ByteBuffer buffer;
+    private long bufferStartPosition;
+
+    /**
+     * Constructor, reads the {@link InputStream} through the fixed size buffer
+     *
+     * @param inputStream the source stream
+     */
+    MidiDataReader(@NonNull final InputStream inputStream) {
+        this.inputStream = inputStream;
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.limit(0);
+        bufferStartPosition = 0;
+    }
+
+    /**
+     * Constructor, reads the {@link ByteBuffer} from its current position
+     *
+     * @param byteBuffer the source buffer
+     */
+    MidiDataReader(@NonNull final ByteBuffer byteBuffer) {
+        inputStream = null;
+        buffer = byteBuffer.duplicate();
+        bufferStartPosition = -buffer.position();
+    }
+
+    /**
+     * Get the number of bytes read
+     *
+     * @return the position
+     */
+    long getPosition() {
+        return bufferStartPosition + buffer.position();
+    }
+
+    /**
+     * Ensure the specified length of data can be read from the buffer
+     *
+     * @param length the length, must be less than or equal to the buffer size
+     * @throws IOException reached to the end of the stream
+     */
+    private void require(final int length) throws IOException {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+
+        if (inputStream == null) {
+            throw new EOFException();
+        }
+
+        bufferStartPosition += buffer.position();
+        buffer.compact();
+        try {
+            while (buffer.position() < length) {
+                final int readBytes = inputStream.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (readBytes < 0) {
+                    throw new EOFException();
+                }
+                buffer.position(buffer.position() + readBytes);
+            }
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Read an unsigned byte
+     *
+     * @return the value
+     * @throws IOException
+     */
+    int readUnsignedByte() throws IOException {
+        require(1);
+        return buffer.get() & 0xff;
+    }
+
+    /**
+     * Read a big-endian signed short
+     *
+     * @return the value
+     * @throws IOException
+     */
+    int readShort() throws IOException {
+        require(2);
+        return buffer.getShort();
+    }
+
+    /**
+     * Read a big-endian int
+     *
+     * @return the value
+     * @throws IOException
+     */
+    int readInt() throws IOException {
+        require(4);
+        return buffer.getInt();
+    }
+
+    /**
+     * Read a variable-length quantity
+     *
+     * @return the value
+     * @throws IOException
+     */
+    int readVariableLengthInt() throws IOException {
+        int c;
+        int value = readUnsignedByte();
+
+        if ((value & 0x80) != 0) {
+            value &= 0x7f;
+            do {
+                value = (value << 7) + ((c = readUnsignedByte()) & 0x7f);
+            } while ((c & 0x80) != 0);
+        }
+
+        return value;
+    }
+
+    /**
+     * Read bytes into the array
+     *
+     * @param destination the destination array, filled entirely
+     * @throws IOException
+     */
+    void readFully(@NonNull final byte[] destination) throws IOException {
+        readFully(destination, destination.length);
+    }
+
+    /**
+     * Read bytes into the head of the array
+     *
+     * @param destination the destination array
+     * @param length the length to read
+     * @throws IOException
+     */
+    void readFully(@NonNull final byte[] destination, final int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!buffer.hasRemaining()) {
+                require(1);
+            }
+            final int readLength = Math.min(buffer.remaining(), length - offset);
+            buffer.get(destination, offset, readLength);
+            offset += readLength;
+        }
+    }
+
+    /**
+     * Skip bytes
+     *
+     * @param length the length to skip
+     * @throws IOException
+     */
+    void skip(final long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            if (!buffer.hasRemaining()) {
+                require(1);
+            }
+            final int skipLength = (int) Math.min(buffer.remaining(), remaining);
+            buffer.position(buffer.position() + skipLength);
+            remaining -= skipLength;
+        }
+    }
+}
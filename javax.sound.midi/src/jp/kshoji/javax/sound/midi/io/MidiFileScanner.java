@@ -0,0 +1,280 @@
+package jp.kshoji.javax.sound.midi.io;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.kshoji.javax.sound.midi.MetaMessage;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.impl.TempoMap;
+
+/**
+ * Scanner for the SMF track chunks, used by {@link StandardMidiFileReader}.<br />
+ * Walks the track data without decoding into {@link jp.kshoji.javax.sound.midi.MidiEvent}s, and collects the metadata of the file.
+ *
+ * @author K.Shoji
+ */
+final class MidiFileScanner {
+    private static final String[] MAJOR_KEYS = {"Cb", "Gb", "Db", "Ab", "Eb", "Bb", "F", "C", "G", "D", "A", "E", "B", "F#", "C#"};
+    private static final String[] MINOR_KEYS = {"Abm", "Ebm", "Bbm", "Fm", "Cm", "Gm", "Dm", "Am", "Em", "Bm", "F#m", "C#m", "G#m", "D#m", "A#m"};
+
+    private final String[] trackNames;
+    private final int[] trackEventCounts;
+    private String copyright = null;
+    private int eventCount = 0;
+    private long tickLength = 0;
+
+    private int tempoCount = 0;
+    private long[] tempoTicks = new long[16];
+    private int[] temposInMPQ = new int[16];
+
+    private final List<String> timeSignatures = new ArrayList<String>();
+    private final List<String> keySignatures = new ArrayList<String>();
+
+    private int channelsUsed = 0;
+    private final boolean[] programsUsed = new boolean[16 * 128];
+
+    private byte[] metaData = new byte[64];
+
+    /**
+     * Constructor
+     *
+     * @param numberOfTracks the number of tracks
+     */
+    MidiFileScanner(final int numberOfTracks) {
+        trackNames = new String[numberOfTracks];
+        trackEventCounts = new int[numberOfTracks];
+    }
+
+    /**
+     * Scan the events in the track chunk.<br />
+     * The reader will be positioned at the same place as the decoding,
+     * even if the track length in the chunk header is shorter than the actual track data.
+     *
+     * @param midiDataReader the reader, positioned at the head of the track data
+     * @param trackLength the length of the track data
+     * @param trackIndex the index of the track
+     * @throws IOException
+     */
+    void scanTrack(@NonNull final MidiDataReader midiDataReader, final int trackLength, final int trackIndex) throws IOException {
+        final long trackEndPosition = midiDataReader.getPosition() + trackLength;
+
+        int runningStatus = -1;
+        long ticks = 0;
+        boolean isTrackRunning = true;
+
+        while (isTrackRunning && midiDataReader.getPosition() < trackEndPosition) {
+            ticks += midiDataReader.readVariableLengthInt(); // add deltaTime
+            trackEventCounts[trackIndex]++;
+            eventCount++;
+            tickLength = Math.max(tickLength, ticks);
+
+            final int data = midiDataReader.readUnsignedByte();
+            if (data < 0x80) {
+                // data values
+                if (runningStatus >= 0 && runningStatus < 0xf0) {
+                    scanChannelMessage(runningStatus, data, midiDataReader);
+                } else if (runningStatus == ShortMessage.SONG_POSITION_POINTER) {
+                    midiDataReader.skip(1);
+                }
+            } else if (data < 0xf0) {
+                // Control messages
+                scanChannelMessage(data, midiDataReader.readUnsignedByte(), midiDataReader);
+                runningStatus = data;
+            } else if (data == ShortMessage.START_OF_EXCLUSIVE || data == ShortMessage.END_OF_EXCLUSIVE) {
+                // System Exclusive event
+                final int sysexLength = midiDataReader.readVariableLengthInt();
+                if (sysexLength > trackEndPosition - midiDataReader.getPosition()) {
+                    isTrackRunning = false;
+                } else {
+                    midiDataReader.skip(sysexLength);
+                }
+                runningStatus = -1;
+            } else if (data == MetaMessage.META) {
+                // Meta Message
+                final int type = midiDataReader.readUnsignedByte();
+                final int metaLength = midiDataReader.readVariableLengthInt();
+                if (metaLength > trackEndPosition - midiDataReader.getPosition()) {
+                    isTrackRunning = false;
+                } else {
+                    scanMetaMessage(type, metaLength, ticks, trackIndex, midiDataReader);
+                }
+                runningStatus = -1;
+
+                if (type == MetaMessage.TYPE_END_OF_TRACK) {
+                    isTrackRunning = false;
+                }
+            } else {
+                // f1-f6, f8-fe
+                if (data == ShortMessage.SONG_POSITION_POINTER) {
+                    midiDataReader.skip(2);
+                } else if (data == ShortMessage.SONG_SELECT || data == ShortMessage.BUS_SELECT) {
+                    midiDataReader.skip(1);
+                }
+                runningStatus = data;
+            }
+        }
+
+        // skip the data after the end of track
+        final long remaining = trackEndPosition - midiDataReader.getPosition();
+        if (remaining > 0) {
+            midiDataReader.skip(remaining);
+        }
+    }
+
+    /**
+     * Scan the channel message
+     *
+     * @param status the status
+     * @param data1 the first data
+     * @param midiDataReader the reader
+     * @throws IOException
+     */
+    private void scanChannelMessage(final int status, final int data1, @NonNull final MidiDataReader midiDataReader) throws IOException {
+        final int channel = status & ShortMessage.MASK_CHANNEL;
+        channelsUsed |= 1 << channel;
+
+        switch (status & ShortMessage.MASK_EVENT) {
+            case ShortMessage.PROGRAM_CHANGE:
+                programsUsed[channel * 128 + (data1 & 0x7f)] = true;
+                break;
+            case ShortMessage.CHANNEL_PRESSURE:
+                break;
+            default:
+                midiDataReader.skip(1);
+                break;
+        }
+    }
+
+    /**
+     * Scan the meta message
+     *
+     * @param type the type of the meta message
+     * @param length the length of the data
+     * @param ticks the tick of the message
+     * @param trackIndex the index of the track
+     * @param midiDataReader the reader
+     * @throws IOException
+     */
+    private void scanMetaMessage(final int type, final int length, final long ticks, final int trackIndex, @NonNull final MidiDataReader midiDataReader) throws IOException {
+        switch (type) {
+            case 0x02: // Copyright Notice
+            case 0x03: // Sequence/Track Name
+            case 0x51: // Set Tempo
+            case 0x58: // Time Signature
+            case 0x59: // Key Signature
+                break;
+            default:
+                midiDataReader.skip(length);
+                return;
+        }
+
+        if (metaData.length < length) {
+            metaData = new byte[Math.max(length, metaData.length * 2)];
+        }
+        final byte[] data = metaData;
+        midiDataReader.readFully(data, length);
+
+        switch (type) {
+            case 0x02:
+                if (copyright == null) {
+                    copyright = new String(data, 0, length);
+                }
+                break;
+            case 0x03:
+                if (trackNames[trackIndex] == null) {
+                    trackNames[trackIndex] = new String(data, 0, length);
+                }
+                break;
+            case 0x51:
+                if (length == 3) {
+                    if (tempoCount == tempoTicks.length) {
+                        tempoTicks = Arrays.copyOf(tempoTicks, tempoCount * 2);
+                        temposInMPQ = Arrays.copyOf(temposInMPQ, tempoCount * 2);
+                    }
+                    tempoTicks[tempoCount] = ticks;
+                    temposInMPQ[tempoCount] = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+                    tempoCount++;
+                }
+                break;
+            case 0x58:
+                if (length >= 2 && (data[1] & 0xff) < 31) {
+                    timeSignatures.add((data[0] & 0xff) + "/" + (1 << (data[1] & 0xff)));
+                }
+                break;
+            case 0x59:
+                if (length >= 2 && data[0] >= -7 && data[0] <= 7) {
+                    keySignatures.add(data[1] == 0 ? MAJOR_KEYS[data[0] + 7] : MINOR_KEYS[data[0] + 7]);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Get the length of the scanned tracks in ticks
+     *
+     * @return the length in ticks
+     */
+    long getTickLength() {
+        return tickLength;
+    }
+
+    /**
+     * Get the length of the scanned tracks in microseconds, calculated with the tempo changes
+     *
+     * @param divisionType the division type of the file
+     * @param resolution the resolution of the file
+     * @return the length in microseconds
+     */
+    long getMicrosecondLength(final float divisionType, final int resolution) {
+        return TempoMap.fromTempoChanges(divisionType, resolution, tempoTicks, temposInMPQ, tempoCount).tickToMicrosecond(tickLength);
+    }
+
+    /**
+     * Get the scanned metadata as the properties of {@link jp.kshoji.javax.sound.midi.MidiFileFormat}
+     *
+     * @return the properties
+     */
+    @NonNull
+    Map<String, Object> getProperties() {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+
+        if (trackNames.length > 0 && trackNames[0] != null) {
+            properties.put(StandardMidiFileReader.PROPERTY_TITLE, trackNames[0]);
+        }
+        if (copyright != null) {
+            properties.put(StandardMidiFileReader.PROPERTY_COPYRIGHT, copyright);
+        }
+
+        properties.put(StandardMidiFileReader.PROPERTY_TRACK_NAMES, trackNames.clone());
+        properties.put(StandardMidiFileReader.PROPERTY_TIME_SIGNATURES, timeSignatures.toArray(new String[timeSignatures.size()]));
+        properties.put(StandardMidiFileReader.PROPERTY_KEY_SIGNATURES, keySignatures.toArray(new String[keySignatures.size()]));
+        properties.put(StandardMidiFileReader.PROPERTY_CHANNELS_USED, channelsUsed);
+
+        final int[][] programs = new int[16][];
+        for (int channel = 0; channel < 16; channel++) {
+            int count = 0;
+            final int[] channelPrograms = new int[128];
+            for (int program = 0; program < 128; program++) {
+                if (programsUsed[channel * 128 + program]) {
+                    channelPrograms[count++] = program;
+                }
+            }
+            programs[channel] = Arrays.copyOf(channelPrograms, count);
+        }
+        properties.put(StandardMidiFileReader.PROPERTY_PROGRAMS_USED, programs);
+
+        properties.put(StandardMidiFileReader.PROPERTY_EVENT_COUNT, eventCount);
+        properties.put(StandardMidiFileReader.PROPERTY_TRACK_EVENT_COUNTS, trackEventCounts.clone());
+        properties.put(StandardMidiFileReader.PROPERTY_TICK_LENGTH, tickLength);
+
+        return properties;
+    }
+}
@@ -1,17 +1,17 @@
 package jp.kshoji.javax.sound.midi.io;
 
-import android.content.res.AssetManager.AssetInputStream;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
 
 import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
 import jp.kshoji.javax.sound.midi.MetaMessage;
@@ -32,6 +32,47 @@ import jp.kshoji.javax.sound.midi.spi.MidiFileReader;
  */
 public class StandardMidiFileReader extends MidiFileReader {
 
+    /**
+     * Property key of the title: {@link String}, the name of the first track
+     */
+    public static final String PROPERTY_TITLE = "title";
+    /**
+     * Property key of the copyright: {@link String}
+     */
+    public static final String PROPERTY_COPYRIGHT = "copyright";
+    /**
+     * Property key of the track names: {@link String}[], null element for the track without name
+     */
+    public static final String PROPERTY_TRACK_NAMES = "trackNames";
+    /**
+     * Property key of the time signatures: {@link String}[], such as "4/4", in the order of the file
+     */
+    public static final String PROPERTY_TIME_SIGNATURES = "timeSignatures";
+    /**
+     * Property key of the key signatures: {@link String}[], such as "C", "F#m", in the order of the file
+     */
+    public static final String PROPERTY_KEY_SIGNATURES = "keySignatures";
+    /**
+     * Property key of the channels used: {@link Integer}, the bit mask of the channels
+     */
+    public static final String PROPERTY_CHANNELS_USED = "channelsUsed";
+    /**
+     * Property key of the programs used: int[16][], the program numbers for each channel
+     */
+    public static final String PROPERTY_PROGRAMS_USED = "programsUsed";
+    /**
+     * Property key of the number of events: {@link Integer}
+     */
+    public static final String PROPERTY_EVENT_COUNT = "eventCount";
+    /**
+     * Property key of the number of events for each track: int[]
+     */
+    public static final String PROPERTY_TRACK_EVENT_COUNTS = "trackEventCounts";
+    /**
+     * Property key of the length in ticks: {@link Long}
+     */
+    public static final String PROPERTY_TICK_LENGTH = "tickLength";
+
     /**
      * Represents Extended MIDI File format
      *
@@ -63,112 +104,213 @@ public class StandardMidiFileReader extends MidiFileReader {
 			super(type, divisionType, resolution, bytes, microseconds);
 			this.numberOfTracks = numberOfTracks;
 		}
+
+		/**
+		 * Create an {@link ExtendedMidiFileFormat} object from the given parameters.
+		 *
+		 * @param type the MIDI file type (0, 1, or 2)
+		 * @param divisionType the MIDI file division type
+		 * @param resolution the MIDI file timing resolution
+		 * @param bytes the MIDI file size in bytes
+		 * @param microseconds the MIDI file length in microseconds
+		 * @param numberOfTracks the number of tracks
+		 * @param properties the properties
+		 */
+		public ExtendedMidiFileFormat(final int type, final float divisionType, final int resolution, final int bytes, final long microseconds, final int numberOfTracks, @NonNull final Map<String, Object> properties) {
+			super(type, divisionType, resolution, bytes, microseconds, properties);
+			this.numberOfTracks = numberOfTracks;
+		}
 	}
 
     /**
-     * Represents InputStream for MIDI Data
+     * Decodes the track chunk on the first access to the {@link Track}
      *
      * @author K.Shoji
      */
-	private static class MidiDataInputStream extends DataInputStream {
+    private static class LazyTrackEventLoader implements TrackUtils.EventLoader {
+        private final ByteBuffer source;
+        private final int trackOffset;
+        private final int trackLength;
 
         /**
          * Constructor
          *
-         * @param inputStream the source stream
+         * @param source the whole file data
+         * @param trackOffset the offset of the track data
+         * @param trackLength the length of the track data
          */
-		public MidiDataInputStream(@NonNull final InputStream inputStream) {
-			super(inputStream);
-		}
+        LazyTrackEventLoader(@NonNull final ByteBuffer source, final int trackOffset, final int trackLength) {
+            this.source = source;
+            this.trackOffset = trackOffset;
+            this.trackLength = trackLength;
+        }
+
+        @Override
+        public void loadEvents(@NonNull final Track track) {
+            final ByteBuffer trackData = source.duplicate();
+            trackData.position(trackOffset);
+            try {
+                readTrack(new MidiDataReader(trackData), trackLength, track);
+            } catch (final IOException ignored) {
+                // truncated track: the events read are kept
+            }
+        }
+    }
+
+    private boolean lazyTrackDecoding = false;
 
-        /**
-         * Read value from InputStream
-         *
-         * @return the variable
-         * @throws IOException
-         */
-		public int readVariableLengthInt() throws IOException {
-			int c;
-			int value = readByte();
-
-			if ((value & 0x80) != 0) {
-				value &= 0x7f;
-				do {
-					value = (value << 7) + ((c = readByte()) & 0x7f);
-				} while ((c & 0x80) != 0);
-			}
+    /**
+     * Set the lazy track decoding, used with {@link #getSequence(File)}.<br />
+     * If enabled, only the track chunk positions are indexed while reading the file,
+     * and each {@link Track} is decoded on the first access.
+     *
+     * @param lazyTrackDecoding true: decode the tracks lazily
+     */
+    public void setLazyTrackDecoding(final boolean lazyTrackDecoding) {
+        this.lazyTrackDecoding = lazyTrackDecoding;
+    }
 
-			return value;
-		}
-	}
+    /**
+     * Get the setting of the lazy track decoding
+     *
+     * @return true: the tracks are decoded lazily
+     */
+    public boolean isLazyTrackDecoding() {
+        return lazyTrackDecoding;
+    }
+
+    private boolean compactTrackStorage = false;
+
+    /**
+     * Set the compact track storage.<br />
+     * If enabled, the tracks are created with {@link TrackUtils#createCompactTrack(Sequence)},
+     * the events are stored into the primitive arrays instead of the {@link MidiEvent} instances.
+     *
+     * @param compactTrackStorage true: create the tracks with the compact storage
+     */
+    public void setCompactTrackStorage(final boolean compactTrackStorage) {
+        this.compactTrackStorage = compactTrackStorage;
+    }
+
+    /**
+     * Get the setting of the compact track storage
+     *
+     * @return true: the tracks are created with the compact storage
+     */
+    public boolean isCompactTrackStorage() {
+        return compactTrackStorage;
+    }
 
     @NonNull
     @Override
 	public MidiFileFormat getMidiFileFormat(@NonNull final InputStream inputStream) throws InvalidMidiDataException, IOException {
-		final DataInputStream dataInputStream;
-		if (inputStream instanceof DataInputStream) {
-			dataInputStream = (DataInputStream) inputStream;
-		} else if (inputStream instanceof AssetInputStream) {
-			// AssetInputStream can't read with DataInputStream
-			dataInputStream = new MidiDataInputStream(convertToByteArrayInputStream(inputStream));
-		} else {
-			dataInputStream = new DataInputStream(inputStream);
+		try {
+			return scanFile(new MidiDataReader(inputStream));
+		} finally {
+			inputStream.close();
 		}
-		
+	}
+
+	/**
+	 * Scan the whole file without decoding the events, and read the metadata
+	 *
+	 * @param midiDataReader the reader
+	 * @return the {@link ExtendedMidiFileFormat} with the length, and the properties
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	@NonNull
+	private static ExtendedMidiFileFormat scanFile(@NonNull final MidiDataReader midiDataReader) throws InvalidMidiDataException, IOException {
+		final ExtendedMidiFileFormat header = readHeader(midiDataReader);
+		final MidiFileScanner midiFileScanner = new MidiFileScanner(header.getNumberTracks());
+
 		try {
-			if (dataInputStream.readInt() != MidiFileFormat.HEADER_MThd) {
-				throw new InvalidMidiDataException("Invalid header");
-			}
+			for (int trackIndex = 0; trackIndex < header.getNumberTracks();) {
+				final int chunkType = midiDataReader.readInt();
+				final int chunkLength = midiDataReader.readInt();
+				if (chunkLength < 0) {
+					throw new InvalidMidiDataException("Invalid track header");
+				}
+				if (chunkType != MidiFileFormat.HEADER_MTrk) {
+					// unknown chunk: ignored
+					midiDataReader.skip(chunkLength);
+					continue;
+				}
 
-			final int bytes = dataInputStream.readInt();
-			if (bytes < 6) {
-				throw new InvalidMidiDataException("Invalid header");
+				midiFileScanner.scanTrack(midiDataReader, chunkLength, trackIndex);
+				trackIndex++;
 			}
+		} catch (final EOFException ignored) {
+			// truncated file: the tracks scanned are used
+		}
 
-			final int type = dataInputStream.readShort();
-			if (type < 0 || type > 2) {
-				throw new InvalidMidiDataException("Invalid header");
-			}
+		final long position = midiDataReader.getPosition();
+		return new ExtendedMidiFileFormat(header.getType(), header.getDivisionType(), header.getResolution(),
+				position > Integer.MAX_VALUE ? MidiFileFormat.UNKNOWN_LENGTH : (int) position,
+				midiFileScanner.getMicrosecondLength(header.getDivisionType(), header.getResolution()),
+				header.getNumberTracks(), midiFileScanner.getProperties());
+	}
 
-			final int numberOfTracks = dataInputStream.readShort();
-			if (numberOfTracks <= 0) {
-				throw new InvalidMidiDataException("Invalid tracks");
-			}
+	/**
+	 * Read the header chunk
+	 *
+	 * @param midiDataReader the reader
+	 * @return the {@link ExtendedMidiFileFormat} read from the header
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	@NonNull
+	private static ExtendedMidiFileFormat readHeader(@NonNull final MidiDataReader midiDataReader) throws InvalidMidiDataException, IOException {
+		if (midiDataReader.readInt() != MidiFileFormat.HEADER_MThd) {
+			throw new InvalidMidiDataException("Invalid header");
+		}
 
-			int division = dataInputStream.readShort();
-			final float divisionType;
-			final int resolution;
-			if ((division & 0x8000) != 0) {
-				resolution = division & 0xff;
-				division = 256 - ((division >>> 8) & 0xff);
-				switch (division) {
-				case 24:
-					divisionType = Sequence.SMPTE_24;
-					break;
-				case 25:
-					divisionType = Sequence.SMPTE_25;
-					break;
-				case 29:
-					divisionType = Sequence.SMPTE_30DROP;
-					break;
-				case 30:
-					divisionType = Sequence.SMPTE_30;
-					break;
-	
-				default:
-					throw new InvalidMidiDataException("Invalid sequence information");
-				}
-			} else {
-				divisionType = Sequence.PPQ;
-				resolution = division & 0x7fff;
+		final int bytes = midiDataReader.readInt();
+		if (bytes < 6) {
+			throw new InvalidMidiDataException("Invalid header");
+		}
+
+		final int type = midiDataReader.readShort();
+		if (type < 0 || type > 2) {
+			throw new InvalidMidiDataException("Invalid header");
+		}
+
+		final int numberOfTracks = midiDataReader.readShort();
+		if (numberOfTracks <= 0) {
+			throw new InvalidMidiDataException("Invalid tracks");
+		}
+
+		int division = midiDataReader.readShort();
+		final float divisionType;
+		final int resolution;
+		if ((division & 0x8000) != 0) {
+			resolution = division & 0xff;
+			division = 256 - ((division >>> 8) & 0xff);
+			switch (division) {
+			case 24:
+				divisionType = Sequence.SMPTE_24;
+				break;
+			case 25:
+				divisionType = Sequence.SMPTE_25;
+				break;
+			case 29:
+				divisionType = Sequence.SMPTE_30DROP;
+				break;
+			case 30:
+				divisionType = Sequence.SMPTE_30;
+				break;
+
+			default:
+				throw new InvalidMidiDataException("Invalid sequence information");
 			}
-	
-			dataInputStream.skip(bytes - 6);
-	
-			return new ExtendedMidiFileFormat(type, divisionType, resolution, MidiFileFormat.UNKNOWN_LENGTH, MidiFileFormat.UNKNOWN_LENGTH, numberOfTracks);
-		} finally {
-			dataInputStream.close();
+		} else {
+			divisionType = Sequence.PPQ;
+			resolution = division & 0x7fff;
 		}
+
+		midiDataReader.skip(bytes - 6);
+
+		return new ExtendedMidiFileFormat(type, divisionType, resolution, MidiFileFormat.UNKNOWN_LENGTH, MidiFileFormat.UNKNOWN_LENGTH, numberOfTracks);
 	}
 
 	@NonNull
@@ -185,9 +327,10 @@ public class StandardMidiFileReader extends MidiFileReader {
 	@NonNull
     @Override
 	public MidiFileFormat getMidiFileFormat(@NonNull final File file) throws InvalidMidiDataException, IOException {
-		final InputStream inputStream = new FileInputStream(file);
+		final FileInputStream inputStream = new FileInputStream(file);
 		try {
-			return getMidiFileFormat(inputStream);
+			final FileChannel fileChannel = inputStream.getChannel();
+			return scanFile(new MidiDataReader(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size())));
 		} finally {
 			inputStream.close();
 		}
@@ -196,97 +339,152 @@ public class StandardMidiFileReader extends MidiFileReader {
 	@NonNull
     @Override
 	public Sequence getSequence(@NonNull final InputStream inputStream) throws InvalidMidiDataException, IOException {
-		final MidiDataInputStream midiDataInputStream = new MidiDataInputStream(convertToByteArrayInputStream(inputStream));
-		
-		try {
-			final ExtendedMidiFileFormat midiFileFormat = (ExtendedMidiFileFormat) getMidiFileFormat(midiDataInputStream);
-			final Sequence sequence = new Sequence(midiFileFormat.getDivisionType(), midiFileFormat.getResolution());
-	
-			int numberOfTracks = midiFileFormat.getNumberTracks();
-			
-			while (numberOfTracks-- > 0) {
-				final Track track = sequence.createTrack();
-				if (midiDataInputStream.readInt() != MidiFileFormat.HEADER_MTrk) {
-					throw new InvalidMidiDataException("Invalid track header");
-				}
-				// track length: ignored
-				midiDataInputStream.readInt();
-	
-				int runningStatus = -1;
-				int ticks = 0;
-				boolean isTrackRunning = true;
-	
-				// Read all of the events.
-				while (isTrackRunning) {
-
-					ticks += midiDataInputStream.readVariableLengthInt(); // add deltaTime
-	
-					final int data = midiDataInputStream.readUnsignedByte();
-					try {
-						final MidiMessage message;
-						if (data < 0x80) {
-							// data values
-							if (runningStatus >= 0 && runningStatus < 0xf0) {
-								message = processRunningMessage(runningStatus, data, midiDataInputStream);
-							} else if (runningStatus >= 0xf0 && runningStatus <= 0xff) {
-								message = processSystemMessage(runningStatus, data, midiDataInputStream);
-							} else {
-								throw new InvalidMidiDataException(String.format("Invalid data: %02x %02x", runningStatus, data));
-							}
-						} else if (data < 0xf0) {
-							// Control messages
-							message = processRunningMessage(data, midiDataInputStream.readUnsignedByte(), midiDataInputStream);
-
-							runningStatus = data;
-						} else if (data == ShortMessage.START_OF_EXCLUSIVE || data == ShortMessage.END_OF_EXCLUSIVE) {
-							// System Exclusive event
-							final int sysexLength = midiDataInputStream.readVariableLengthInt();
-							if (sysexLength > midiDataInputStream.available()) {
-								throw new InvalidMidiDataException(String.format("Invalid system exclusive length: %d", sysexLength));
-							}
-							final byte[] sysexData = new byte[sysexLength];
-							midiDataInputStream.readFully(sysexData);
-
-							final SysexMessage sysexMessage = new SysexMessage();
-							sysexMessage.setMessage(data, sysexData, sysexLength);
-							message = sysexMessage;
-
-							runningStatus = -1;
-						} else if (data == MetaMessage.META) {
-							// Meta Message
-							final int type = midiDataInputStream.readUnsignedByte();
-
-							final int metaLength = midiDataInputStream.readVariableLengthInt();
-							final byte[] metaData = new byte[metaLength];
-							midiDataInputStream.readFully(metaData);
-
-							final MetaMessage metaMessage = new MetaMessage();
-							metaMessage.setMessage(type, metaData, metaLength);
-							message = metaMessage;
-
-							runningStatus = -1;
-
-							if (type == MetaMessage.TYPE_END_OF_TRACK) {
-								isTrackRunning = false;
-							}
-						} else {
-							// f1-f6, f8-fe
-							message = processSystemMessage(data, null, midiDataInputStream);
-
-							runningStatus = data;
-						}
-
-						track.add(new MidiEvent(message, ticks));
-					} catch (InvalidMidiDataException ignored) {
+		// the stream is read through the fixed size buffer, not loaded at once
+		return readSequence(new MidiDataReader(inputStream), null, compactTrackStorage);
+	}
+
+	/**
+	 * Read the {@link Sequence}
+	 *
+	 * @param midiDataReader the reader
+	 * @param lazySource the whole file data read by the reader, the tracks are decoded lazily from it. null: decode the tracks immediately
+	 * @param compactTrackStorage true: create the tracks with the compact storage
+	 * @return the sequence
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	@NonNull
+	private static Sequence readSequence(@NonNull final MidiDataReader midiDataReader, @Nullable final ByteBuffer lazySource, final boolean compactTrackStorage) throws InvalidMidiDataException, IOException {
+		final ExtendedMidiFileFormat midiFileFormat = readHeader(midiDataReader);
+		final Sequence sequence = new Sequence(midiFileFormat.getDivisionType(), midiFileFormat.getResolution());
+
+		int numberOfTracks = midiFileFormat.getNumberTracks();
+
+		while (numberOfTracks > 0) {
+			final int chunkType = midiDataReader.readInt();
+			final int chunkLength = midiDataReader.readInt();
+			if (chunkLength < 0) {
+				throw new InvalidMidiDataException("Invalid track header");
+			}
+			if (chunkType != MidiFileFormat.HEADER_MTrk) {
+				// unknown chunk: ignored
+				midiDataReader.skip(chunkLength);
+				continue;
+			}
+
+			final Track track = compactTrackStorage ? TrackUtils.createCompactTrack(sequence) : sequence.createTrack();
+			if (lazySource == null) {
+				readTrack(midiDataReader, chunkLength, track);
+			} else {
+				// index the track data only, the decoding ends at the chunk length too
+				final int trackOffset = (int) midiDataReader.getPosition();
+				midiDataReader.skip(chunkLength);
+				TrackUtils.setEventLoader(track, new LazyTrackEventLoader(lazySource, trackOffset, chunkLength));
+			}
+			numberOfTracks--;
+		}
+
+		return sequence;
+	}
+
+	/**
+	 * Read the events in the track chunk
+	 *
+	 * @param midiDataReader the reader, positioned at the head of the track data
+	 * @param trackLength the length of the track data
+	 * @param track the track to add the events
+	 * @throws IOException
+	 */
+	private static void readTrack(@NonNull final MidiDataReader midiDataReader, final int trackLength, @NonNull final Track track) throws IOException {
+		final long trackEndPosition = midiDataReader.getPosition() + trackLength;
+
+		int runningStatus = -1;
+		int ticks = 0;
+		boolean isTrackRunning = true;
+
+		// Read all of the events.
+		while (isTrackRunning && midiDataReader.getPosition() < trackEndPosition) {
+
+			ticks += midiDataReader.readVariableLengthInt(); // add deltaTime
+
+			final int data = midiDataReader.readUnsignedByte();
+			try {
+				final MidiMessage message;
+				if (data < 0x80) {
+					// data values
+					if (runningStatus >= 0 && runningStatus < 0xf0) {
+						message = processRunningMessage(runningStatus, data, midiDataReader);
+					} else if (runningStatus >= 0xf0 && runningStatus <= 0xff) {
+						message = processSystemMessage(runningStatus, data, midiDataReader);
+					} else {
+						throw new InvalidMidiDataException(String.format("Invalid data: %02x %02x", runningStatus, data));
+					}
+				} else if (data < 0xf0) {
+					// Control messages
+					message = processRunningMessage(data, midiDataReader.readUnsignedByte(), midiDataReader);
+
+					runningStatus = data;
+				} else if (data == ShortMessage.START_OF_EXCLUSIVE || data == ShortMessage.END_OF_EXCLUSIVE) {
+					// System Exclusive event
+					final int sysexLength = midiDataReader.readVariableLengthInt();
+					if (sysexLength > trackEndPosition - midiDataReader.getPosition()) {
+						// the rest of the track can't be read
+						isTrackRunning = false;
+						throw new InvalidMidiDataException(String.format("Invalid system exclusive length: %d", sysexLength));
+					}
+					final byte[] sysexData = new byte[sysexLength];
+					midiDataReader.readFully(sysexData);
+
+					final SysexMessage sysexMessage = new SysexMessage();
+					sysexMessage.setMessage(data, sysexData, sysexLength);
+					message = sysexMessage;
+
+					runningStatus = -1;
+				} else if (data == MetaMessage.META) {
+					// Meta Message
+					final int type = midiDataReader.readUnsignedByte();
+
+					final int metaLength = midiDataReader.readVariableLengthInt();
+					if (metaLength > trackEndPosition - midiDataReader.getPosition()) {
+						// the rest of the track can't be read
+						isTrackRunning = false;
+						throw new InvalidMidiDataException(String.format("Invalid meta message length: %d", metaLength));
 					}
+					final byte[] metaData = new byte[metaLength];
+					midiDataReader.readFully(metaData);
+
+					final MetaMessage metaMessage = new MetaMessage();
+					metaMessage.setMessage(type, metaData, metaLength);
+					message = metaMessage;
+
+					runningStatus = -1;
+
+					if (type == MetaMessage.TYPE_END_OF_TRACK) {
+						isTrackRunning = false;
+					}
+				} else {
+					// f1-f6, f8-fe
+					message = processSystemMessage(data, null, midiDataReader);
+
+					runningStatus = data;
 				}
-				
-				TrackUtils.sortEvents(track);
+
+				track.add(new MidiEvent(message, ticks));
+			} catch (InvalidMidiDataException ignored) {
 			}
-	
-			return sequence;
-		} finally {
-			midiDataInputStream.close();
+		}
+
+		// skip the data after the end of track
+		final long remaining = trackEndPosition - midiDataReader.getPosition();
+		if (remaining > 0) {
+			midiDataReader.skip(remaining);
+		}
+
+		// the events are already sorted by Track.add, only the missing End of Track is added
+		try {
+			track.add(new MidiEvent(new MetaMessage(MetaMessage.TYPE_END_OF_TRACK, new byte[0], 0), ticks));
+		} catch (final InvalidMidiDataException ignored) {
+			// ignore exception
 		}
 	}
 
@@ -295,21 +493,21 @@ public class StandardMidiFileReader extends MidiFileReader {
      *
      * @param data1 the first data
      * @param data2 the second data
-     * @param midiDataInputStream the InputStream
+     * @param midiDataReader the reader
      * @return the processed MIDI message
      * @throws InvalidMidiDataException invalid MIDI data inputted
      * @throws IOException
      */
     @NonNull
-	private static ShortMessage processSystemMessage(final int data1, final Integer data2, @NonNull final DataInput midiDataInputStream) throws InvalidMidiDataException, IOException {
+	private static ShortMessage processSystemMessage(final int data1, final Integer data2, @NonNull final MidiDataReader midiDataReader) throws InvalidMidiDataException, IOException {
 		final ShortMessage shortMessage;
 		switch (data1) {
 		case ShortMessage.SONG_POSITION_POINTER://f2
 			shortMessage = new ShortMessage();
 			if (data2 == null) {
-				shortMessage.setMessage(data1, midiDataInputStream.readUnsignedByte(), midiDataInputStream.readUnsignedByte());
+				shortMessage.setMessage(data1, midiDataReader.readUnsignedByte(), midiDataReader.readUnsignedByte());
 			} else {
-				shortMessage.setMessage(data1, data2, midiDataInputStream.readUnsignedByte());
+				shortMessage.setMessage(data1, data2, midiDataReader.readUnsignedByte());
 			}
 			break;
 			
@@ -317,7 +515,7 @@ public class StandardMidiFileReader extends MidiFileReader {
 		case ShortMessage.BUS_SELECT://f5
 			shortMessage = new ShortMessage();
 			if (data2 == null) {
-				shortMessage.setMessage(data1, midiDataInputStream.readUnsignedByte(), 0);
+				shortMessage.setMessage(data1, midiDataReader.readUnsignedByte(), 0);
 			} else {
 				shortMessage.setMessage(data1, data2, 0);
 			}
@@ -348,13 +546,13 @@ public class StandardMidiFileReader extends MidiFileReader {
      *
      * @param status running status
      * @param data1 the first data
-     * @param midiDataInputStream the InputStream
+     * @param midiDataReader the reader
      * @return the processed MIDI message
      * @throws InvalidMidiDataException invalid MIDI data inputted
      * @throws IOException
      */
     @NonNull
-    private static ShortMessage processRunningMessage(final int status, final int data1, @NonNull final DataInput midiDataInputStream) throws InvalidMidiDataException, IOException {
+    private static ShortMessage processRunningMessage(final int status, final int data1, @NonNull final MidiDataReader midiDataReader) throws InvalidMidiDataException, IOException {
 		final ShortMessage shortMessage;
 		switch (status & ShortMessage.MASK_EVENT) {
 		case ShortMessage.NOTE_OFF://80
@@ -363,7 +561,7 @@ public class StandardMidiFileReader extends MidiFileReader {
 		case ShortMessage.CONTROL_CHANGE://b0
 		case ShortMessage.PITCH_BEND://e0
 			shortMessage = new ShortMessage();
-			shortMessage.setMessage(status, data1, midiDataInputStream.readUnsignedByte());
+			shortMessage.setMessage(status, data1, midiDataReader.readUnsignedByte());
 			break;
 
 		case ShortMessage.PROGRAM_CHANGE://c0
@@ -379,30 +577,6 @@ public class StandardMidiFileReader extends MidiFileReader {
 		return shortMessage;
 	}
 
-	/**
-	 * Convert inputStream into {@link ByteArrayInputStream}
-	 * 
-	 * @param inputStream the {@link InputStream} instance
-	 * @return the {@link ByteArrayInputStream}
-	 * @throws IOException
-	 */
-    @NonNull
-    private static ByteArrayInputStream convertToByteArrayInputStream(@NonNull final InputStream inputStream) throws IOException {
-		if (inputStream instanceof ByteArrayInputStream) {
-			// already ByteArrayInputStream
-			return (ByteArrayInputStream) inputStream;
-		}
-		
-		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-		final byte[] buffer = new byte[10240];
-		int readBytes = 0;
-		while ((readBytes = inputStream.read(buffer)) >= 0) {
-			outputStream.write(buffer, 0, readBytes);
-		}
-
-        return new ByteArrayInputStream(outputStream.toByteArray());
-	}
-
 	@NonNull
     @Override
 	public Sequence getSequence(@NonNull final URL url) throws InvalidMidiDataException, IOException {
@@ -417,9 +591,12 @@ public class StandardMidiFileReader extends MidiFileReader {
 	@NonNull
     @Override
 	public Sequence getSequence(@NonNull final File file) throws InvalidMidiDataException, IOException {
-		final InputStream inputStream = new FileInputStream(file);
+		final FileInputStream inputStream = new FileInputStream(file);
 		try {
-			return getSequence(inputStream);
+			// the file is mapped, not loaded into the heap
+			final FileChannel fileChannel = inputStream.getChannel();
+			final ByteBuffer fileData = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+			return readSequence(new MidiDataReader(fileData), lazyTrackDecoding ? fileData : null, compactTrackStorage);
 		} finally {
 			inputStream.close();
 		}
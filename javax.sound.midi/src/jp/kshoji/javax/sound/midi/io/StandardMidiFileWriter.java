@@ -2,15 +2,16 @@ package jp.kshoji.javax.sound.midi.io;
 
 import android.support.annotation.NonNull;
 
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 import jp.kshoji.javax.sound.midi.MetaMessage;
 import jp.kshoji.javax.sound.midi.MidiEvent;
 import jp.kshoji.javax.sound.midi.MidiFileFormat;
+import jp.kshoji.javax.sound.midi.MidiMessage;
 import jp.kshoji.javax.sound.midi.Sequence;
 import jp.kshoji.javax.sound.midi.ShortMessage;
 import jp.kshoji.javax.sound.midi.SysexMessage;
@@ -25,80 +26,144 @@ import jp.kshoji.javax.sound.midi.spi.MidiFileWriter;
 public class StandardMidiFileWriter extends MidiFileWriter {
 
     /**
-     * Represents OutputStream for MIDI Data
+     * Growable buffer for MIDI Data, reused for all tracks
      *
      * @author K.Shoji
      */
-    private static class MidiDataOutputStream extends DataOutputStream {
+    private static class MidiDataBuffer {
+		private static final int INITIAL_BUFFER_SIZE = 8192;
+
+		private byte[] data = new byte[INITIAL_BUFFER_SIZE];
+		private int length = 0;
 
         /**
-         * Constructor
+         * Ensure the specified length of data can be appended
          *
-         * @param outputStream the source stream
+         * @param appendLength the length to append
          */
-		public MidiDataOutputStream(@NonNull final OutputStream outputStream) {
-			super(outputStream);
+		private void ensureCapacity(final int appendLength) {
+			if (length + appendLength > data.length) {
+				data = Arrays.copyOf(data, Math.max(length + appendLength, data.length * 2));
+			}
 		}
 
         /**
-         * Convert the specified value into the value for MIDI data
+         * Write a byte
          *
-         * @param value the original value
-         * @return the raw data to write
+         * @param value the value
          */
-		private static int getValueToWrite(final int value) {
-			int result = value & 0x7f;
-			int currentValue = value;
+		void writeByte(final int value) {
+			ensureCapacity(1);
+			data[length++] = (byte) value;
+		}
 
-			while ((currentValue >>= 7) != 0) {
-				result <<= 8;
-				result |= ((currentValue & 0x7f) | 0x80);
-			}
-			return result;
+        /**
+         * Write a big-endian short
+         *
+         * @param value the value
+         */
+		void writeShort(final int value) {
+			ensureCapacity(2);
+			data[length++] = (byte) (value >> 8);
+			data[length++] = (byte) value;
 		}
 
         /**
-         * Get the data length for the specified value
+         * Write a big-endian int
          *
          * @param value the value
-         * @return the data length
          */
-		private static int variableLengthIntLength(final int value) {
-			int valueToWrite = getValueToWrite(value);
+		void writeInt(final int value) {
+			ensureCapacity(4);
+			setInt(length, value);
+			length += 4;
+		}
 
-			int length = 0;
-			while (true) {
-				length++;
+        /**
+         * Overwrite a big-endian int at the specified position
+         *
+         * @param position the position
+         * @param value the value
+         */
+		void setInt(final int position, final int value) {
+			data[position] = (byte) (value >> 24);
+			data[position + 1] = (byte) (value >> 16);
+			data[position + 2] = (byte) (value >> 8);
+			data[position + 3] = (byte) value;
+		}
 
-				if ((valueToWrite & 0x80) != 0) {
-					valueToWrite >>>= 8;
-				} else {
-					break;
-				}
+        /**
+         * Write a variable-length quantity
+         *
+         * @param value the value
+         */
+		void writeVariableLengthInt(final int value) {
+			ensureCapacity(5);
+			int shift = 28;
+			while (shift > 0 && (value >>> shift) == 0) {
+				shift -= 7;
+			}
+			while (shift > 0) {
+				data[length++] = (byte) (((value >>> shift) & 0x7f) | 0x80);
+				shift -= 7;
 			}
+			data[length++] = (byte) (value & 0x7f);
+		}
 
+        /**
+         * Write the part of the message source data, without copying the message
+         *
+         * @param message the message
+         * @param offset the offset of the message source data
+         * @param messageLength the length to write
+         */
+		void writeMessage(@NonNull final MidiMessage message, final int offset, final int messageLength) {
+			ensureCapacity(messageLength);
+			message.getMessage(offset, data, length, messageLength);
+			length += messageLength;
+		}
+
+        /**
+         * Get the length of the written data
+         *
+         * @return the length
+         */
+		int length() {
 			return length;
 		}
 
         /**
-         * Write the specified value to the OutputStream
+         * Write the data to the stream, and clear the buffer
          *
-         * @param value the value
+         * @param outputStream the stream
          * @throws IOException
          */
-		private void writeVariableLengthInt(final int value) throws IOException {
-			int valueToWrite = getValueToWrite(value);
+		void writeTo(@NonNull final OutputStream outputStream) throws IOException {
+			outputStream.write(data, 0, length);
+			length = 0;
+		}
+	}
 
-			while (true) {
-				writeByte(valueToWrite & 0xff);
+	private boolean runningStatus = false;
 
-				if ((valueToWrite & 0x80) != 0) {
-					valueToWrite >>>= 8;
-				} else {
-					break;
-				}
-			}
-		}
+	/**
+	 * Set the running status.<br />
+	 * If enabled, the status byte of the channel message is omitted when it's same as the previous one.
+	 * The running status is cleared by the system exclusive, meta, and system common messages.
+	 *
+	 * @param runningStatus true: write with running status
+	 */
+	public void setRunningStatus(final boolean runningStatus) {
+		this.runningStatus = runningStatus;
+	}
+
+	/**
+	 * Get the setting of the running status
+	 *
+	 * @return true: write with running status
+	 */
+	public boolean isRunningStatus() {
+		return runningStatus;
 	}
 
 	@NonNull
@@ -127,13 +192,13 @@ public class StandardMidiFileWriter extends MidiFileWriter {
 
 	@Override
 	public int write(@NonNull final Sequence sequence, final int fileType, @NonNull final OutputStream outputStream) throws IOException {
-		final MidiDataOutputStream midiDataOutputStream = new MidiDataOutputStream(outputStream);
+		final MidiDataBuffer midiDataBuffer = new MidiDataBuffer();
 
 		final Track[] tracks = sequence.getTracks();
-		midiDataOutputStream.writeInt(MidiFileFormat.HEADER_MThd);
-		midiDataOutputStream.writeInt(6);
-		midiDataOutputStream.writeShort(fileType);
-		midiDataOutputStream.writeShort(tracks.length);
+		midiDataBuffer.writeInt(MidiFileFormat.HEADER_MThd);
+		midiDataBuffer.writeInt(6);
+		midiDataBuffer.writeShort(fileType);
+		midiDataBuffer.writeShort(tracks.length);
 		
 		final float divisionType = sequence.getDivisionType();
 		final int resolution = sequence.getResolution();
@@ -153,97 +218,82 @@ public class StandardMidiFileWriter extends MidiFileWriter {
 			division = (30 << 8) * -1;
 			division += resolution & 0xff;
 		}
-		midiDataOutputStream.writeShort(division);
+		midiDataBuffer.writeShort(division);
 		
-		int length = 0;
+		int length = midiDataBuffer.length();
+		midiDataBuffer.writeTo(outputStream);
+
 		for (final Track track : tracks) {
-			length += writeTrack(track, midiDataOutputStream);
+			// each track is encoded once, and written at once
+			writeTrack(track, midiDataBuffer, runningStatus);
+			length += midiDataBuffer.length();
+			midiDataBuffer.writeTo(outputStream);
 		}
 		
-		midiDataOutputStream.close();
-		return length + 14;
+		outputStream.close();
+		return length;
 	}
 
 	/**
-	 * Write {@link Track} data into {@link MidiDataOutputStream}
+	 * Encode {@link Track} data into {@link MidiDataBuffer}
 	 * 
 	 * @param track the track
-	 * @param midiDataOutputStream the OutputStream
-	 * @return written byte length
-	 * @throws IOException
+	 * @param midiDataBuffer the buffer
+	 * @param useRunningStatus true: omit the status byte with running status
 	 */
-	private static int writeTrack(@NonNull final Track track, @NonNull final MidiDataOutputStream midiDataOutputStream) throws IOException {
+	private static void writeTrack(@NonNull final Track track, @NonNull final MidiDataBuffer midiDataBuffer, final boolean useRunningStatus) {
 		final int eventCount = track.size();
 
-		// track header
-        midiDataOutputStream.writeInt(MidiFileFormat.HEADER_MTrk);
+		// track header, the length is written after encoding the events
+		midiDataBuffer.writeInt(MidiFileFormat.HEADER_MTrk);
+		final int trackLengthPosition = midiDataBuffer.length();
+		midiDataBuffer.writeInt(0);
 
-		// calculate the track length
-		int trackLength = 0;
 		long lastTick = 0;
-		MidiEvent midiEvent = null;
-		for (int i = 0; i < eventCount; i++) {
-            midiEvent = track.get(i);
-			if (midiEvent.getMessage() instanceof ShortMessage && midiEvent.getMessage().getStatus() >= 0xf8) {
-				// ignore system realtime messages
-				continue;
-			}
-			final long tick = midiEvent.getTick();
-			trackLength += MidiDataOutputStream.variableLengthIntLength((int) (tick - lastTick));
-			lastTick = tick;
-
-			trackLength += midiEvent.getMessage().getLength();
-		}
-
-        // process End of Track message
-		boolean needEndOfTrack = true;
-		if (midiEvent != null && (midiEvent.getMessage() instanceof MetaMessage) && //
-            ((MetaMessage)midiEvent.getMessage()).getType() == MetaMessage.TYPE_END_OF_TRACK) {
-            needEndOfTrack = false;
-        } else {
-            trackLength += 4; // End of Track
-        }
-        midiDataOutputStream.writeInt(trackLength);
-
-        // write the track data
-		lastTick = 0;
+		int runningStatus = 0;
+		MidiMessage message = null;
 		for (int i = 0; i < eventCount; i++) {
-            midiEvent = track.get(i);
-			if (midiEvent.getMessage() instanceof ShortMessage && midiEvent.getMessage().getStatus() >= 0xf8) {
+			final MidiEvent midiEvent = track.get(i);
+			message = midiEvent.getMessage();
+			final int messageLength = message.getLength();
+			if (message instanceof ShortMessage && message.getStatus() >= 0xf8) {
 				// ignore system realtime messages
 				continue;
 			}
 			final long tick = midiEvent.getTick();
-			midiDataOutputStream.writeVariableLengthInt((int) (tick - lastTick));
+			midiDataBuffer.writeVariableLengthInt((int) (tick - lastTick));
 			lastTick = tick;
 
-			if (midiEvent.getMessage() instanceof SysexMessage) {
-				SysexMessage sysexMessage = (SysexMessage) midiEvent.getMessage();
-				midiDataOutputStream.writeByte((byte) midiEvent.getMessage().getStatus());
-				byte[] sysexData = sysexMessage.getData();
-				midiDataOutputStream.writeVariableLengthInt(sysexData.length);
-				midiDataOutputStream.write(sysexData, 0, sysexData.length);
-			} else if (midiEvent.getMessage() instanceof MetaMessage) {
-				MetaMessage metaMessage = (MetaMessage)midiEvent.getMessage();
-
-				midiDataOutputStream.writeByte(0xff);
-				midiDataOutputStream.writeByte((byte)metaMessage.getType());
-				byte[] metaData = metaMessage.getData();
-				midiDataOutputStream.writeVariableLengthInt(metaData.length);
-				midiDataOutputStream.write(metaData, 0, metaData.length);
+			if (message instanceof SysexMessage) {
+				// status, the data length, and the data
+				midiDataBuffer.writeByte(message.getStatus());
+				midiDataBuffer.writeVariableLengthInt(messageLength - 1);
+				midiDataBuffer.writeMessage(message, 1, messageLength - 1);
+				runningStatus = 0;
+			} else if (message instanceof MetaMessage) {
+				// MetaMessage has the same format as SMF
+				midiDataBuffer.writeMessage(message, 0, messageLength);
+				runningStatus = 0;
 			} else {
-				midiDataOutputStream.write(midiEvent.getMessage().getMessage(), 0, midiEvent.getMessage().getLength());
+				final int status = message.getStatus();
+				if (useRunningStatus && status == runningStatus) {
+					midiDataBuffer.writeMessage(message, 1, messageLength - 1);
+				} else {
+					midiDataBuffer.writeMessage(message, 0, messageLength);
+				}
+				// system common messages clear the running status
+				runningStatus = status < 0xf0 ? status : 0;
 			}
-        }
+		}
 
-        // write End of Track message if not found.
-        if (needEndOfTrack) {
-            midiDataOutputStream.writeVariableLengthInt(0);
-            midiDataOutputStream.writeByte(MetaMessage.META);
-            midiDataOutputStream.writeByte(MetaMessage.TYPE_END_OF_TRACK);
-            midiDataOutputStream.writeVariableLengthInt(0);
-        }
+		// write End of Track message if not found.
+		if (!(message instanceof MetaMessage && ((MetaMessage) message).getType() == MetaMessage.TYPE_END_OF_TRACK)) {
+			midiDataBuffer.writeVariableLengthInt(0);
+			midiDataBuffer.writeByte(MetaMessage.META);
+			midiDataBuffer.writeByte(MetaMessage.TYPE_END_OF_TRACK);
+			midiDataBuffer.writeVariableLengthInt(0);
+		}
 
-		return trackLength + 4;
+		midiDataBuffer.setInt(trackLengthPosition, midiDataBuffer.length() - trackLengthPosition - 4);
 	}
 }